@@ -0,0 +1,62 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.lib.ArgumentParser;
+import src.lib.ArgumentPosition;
+
+/**
+ * Parses a commandline like the one of Chris, with a number of files
+ * at the back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ArgumentParserBenchmark {
+    @Param({"1", "1000"})
+    public int files;
+
+    private String[] args;
+
+    @Setup
+    public void setup() {
+	args = new String[5 + files];
+	args[0] = "-d";
+	args[1] = "-b";
+	args[2] = "asm";
+	args[3] = "--output";
+	args[4] = "out";
+	for(int index = 0; index < files; index++) {
+	    args[5 + index] = "file" + index + ".chris";
+	}
+    }
+
+    @Benchmark
+    public ArgumentParser parse() {
+	// A parser only parses once, so every call sets up a new one
+	ArgumentParser parser = new ArgumentParser("Usage: java -jar Chris.jar [switches] [options] [files...]");
+	parser.addOption("-o", "--output", "FILE", "The file to write to");
+	parser.addOption("-b", "--backend", "BACKEND", "c, jvm or asm");
+	parser.addOption("-j", "--jobs", "N", "The number of files compiled at once");
+	parser.addSwitch("-d", "--debug", "Run tests before compiling");
+	parser.addSwitch("-r", "--run", "Run the program instead of compiling it");
+	parser.searchPositionalsAt(ArgumentPosition.BACK);
+	parser.parse(args);
+	return parser;
+    }
+}
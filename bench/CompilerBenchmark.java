@@ -0,0 +1,101 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Compiler;
+import src.Ir;
+import src.Lexer;
+import src.Optimizer;
+import src.TapeBounds;
+import src.TokenStream;
+
+/**
+ * Runs the passes after lexing on a synthetic corpus: building the
+ * intermediate representation, the optimizer passes, and emitting C into
+ * memory, so the disk is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CompilerBenchmark {
+    @Param({"runs", "loops"})
+    public String corpus;
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private TokenStream tokens;
+    private ArrayList<Ir.Node> built;
+    private ArrayList<Ir.Node> program;
+    private ArrayList<Ir.Node> propagated;
+    private TapeBounds bounds;
+    // The size of the C code, so the writers do not have to grow
+    private int emitted;
+
+    @Setup
+    public void setup() throws IOException {
+	byte[] source = Corpus.of(corpus, size);
+	tokens = new TokenStream();
+	Lexer.lex(source, 0, source.length, tokens);
+	built = Ir.build(tokens);
+	program = Optimizer.addressOffsets(Optimizer.recognizeIdioms(built));
+	propagated = Optimizer.propagateValues(program);
+	bounds = TapeBounds.analyze(program);
+	emitted = compile().getBuffer().length();
+    }
+
+    @Benchmark
+    public ArrayList<Ir.Node> build() {
+	return Ir.build(tokens);
+    }
+
+    @Benchmark
+    public ArrayList<Ir.Node> recognizeIdioms() {
+	return Optimizer.recognizeIdioms(built);
+    }
+
+    @Benchmark
+    public ArrayList<Ir.Node> addressOffsets() {
+	return Optimizer.addressOffsets(built);
+    }
+
+    @Benchmark
+    public ArrayList<Ir.Node> propagateValues() {
+	return Optimizer.propagateValues(program);
+    }
+
+    @Benchmark
+    public ArrayList<Ir.Node> removeDeadStores() {
+	return Optimizer.removeDeadStores(propagated);
+    }
+
+    @Benchmark
+    public TapeBounds analyze() {
+	return TapeBounds.analyze(program);
+    }
+
+    @Benchmark
+    public StringWriter compile() throws IOException {
+	StringWriter writer = new StringWriter(emitted);
+	Compiler.compile(program, writer, bounds, false, 8);
+	return writer;
+    }
+}
@@ -0,0 +1,108 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Corpus generates synthetic programs of a given size for the benchmarks.
+ * The programs are generated from a fixed seed, so every run of a benchmark
+ * sees the same source.
+ */
+public class Corpus {
+    private static final long SEED = 18191;
+
+    /**
+     * @param kind "runs" or "loops"
+     * @param size The size of the program in bytes
+     * @return The source code of the program
+     */
+    public static byte[] of(String kind, int size) {
+	if(kind.equals("runs")) {
+	    return runs(size);
+	}
+	if(kind.equals("loops")) {
+	    return loops(size);
+	}
+	throw new IllegalArgumentException("Unknown corpus " + kind);
+    }
+
+    /**
+     * Long runs of a single command on every line, like infile.chris:
+     * "AAAA...AAAAOR"
+     */
+    public static byte[] runs(int size) {
+	Random random = new Random(SEED);
+	StringBuilder source = new StringBuilder(size + 128);
+	while(source.length() < size) {
+	    int length = 60 + random.nextInt(60);
+	    for(int index = 0; index < length; index++) {
+		source.append('A');
+	    }
+	    source.append("OR\n");
+	}
+	return truncate(source, size);
+    }
+
+    /**
+     * Short runs in nested loops: counted loops, clear and multiply loops
+     * and scans. The loops are balanced, but the programs need not terminate.
+     */
+    public static byte[] loops(int size) {
+	Random random = new Random(SEED);
+	StringBuilder source = new StringBuilder(size + 128);
+	while(source.length() < size) {
+	    loop(random, source, 0);
+	    source.append('\n');
+	}
+	return truncate(source, size);
+    }
+
+    private static void loop(Random random, StringBuilder source, int depth) {
+	switch(random.nextInt(depth < 4 ? 5 : 4)) {
+	case 0:
+	    // Clear
+	    source.append("{D}");
+	    break;
+	case 1:
+	    // Multiply into the next cells
+	    source.append("{DRAAARRAAAAALLL}");
+	    break;
+	case 2:
+	    // Scan for an empty cell
+	    source.append("{RR}");
+	    break;
+	case 3:
+	    repeat(source, 'A', 1 + random.nextInt(12));
+	    repeat(source, 'R', 1 + random.nextInt(3));
+	    source.append('O');
+	    repeat(source, 'L', 1 + random.nextInt(3));
+	    break;
+	default:
+	    // A counted loop around some more loops
+	    repeat(source, 'A', 2 + random.nextInt(8));
+	    source.append("{DR");
+	    int body = 1 + random.nextInt(4);
+	    for(int index = 0; index < body; index++) {
+		loop(random, source, depth + 1);
+	    }
+	    source.append("L}");
+	}
+    }
+
+    private static void repeat(StringBuilder source, char command, int count) {
+	for(int index = 0; index < count; index++) {
+	    source.append(command);
+	}
+    }
+
+    /**
+     * Cuts the source to size at the last line that fits, so no loop is
+     * left open. A single line longer than size is kept whole.
+     */
+    private static byte[] truncate(StringBuilder source, int size) {
+	int end = source.lastIndexOf("\n", size - 1) + 1;
+	if(end == 0) {
+	    end = source.indexOf("\n") + 1;
+	}
+	return source.substring(0, end).getBytes();
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import src.Lexer;
+import src.TokenStream;
+
+/**
+ * Lexes a synthetic corpus, either a command at a time with
+ * Lexer.createTokenFrom or as a whole with Lexer.lex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LexerBenchmark {
+    @Param({"runs", "loops"})
+    public String corpus;
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private byte[] source;
+    private String[] commands;
+
+    @Setup
+    public void setup() {
+	source = Corpus.of(corpus, size);
+	// Split into single commands, the way the lexer used to get them
+	commands = new String(source).split("");
+    }
+
+    @Benchmark
+    public void createTokenFrom(Blackhole blackhole) {
+	for(String command : commands) {
+	    blackhole.consume(Lexer.createTokenFrom(command));
+	}
+    }
+
+    @Benchmark
+    public TokenStream lex() {
+	TokenStream tokens = new TokenStream();
+	Lexer.lex(source, 0, source.length, tokens);
+	return tokens;
+    }
+}
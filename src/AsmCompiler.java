@@ -0,0 +1,563 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.io.Writer;
+import java.io.StringWriter;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import src.Ir;
+import src.TapeBounds;
+import src.CompileException;
+import src.Compiler;
+import src.Optimizer;
+
+/**
+ * AsmCompiler translates a program into x86-64 assembly for the GNU
+ * assembler (AT&T syntax). The generated program runs on Linux, talks to
+ * the kernel through system calls and needs no C library, so it is built
+ * with nothing but the assembler and the linker:
+ *     as out.s -o out.o && ld out.o -o out
+ *
+ * A program whose bounds are known gets a tape of just their size in the
+ * .bss. All others get a huge tape from mmap, whose pages are committed on
+ * first use, between two guard regions. An access to a guard ends the
+ * program with a message, like the mapped tape of the c backend.
+ *
+ * Registers:
+ *     %rbx  the address of the current cell
+ *     %r12  the number of bytes in the output buffer
+ *     %r13  the position in the input buffer
+ *     %r14  the number of bytes in the input buffer
+ *     %r15  the counter of repeated input and output
+ */
+public class AsmCompiler {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Larger tapes are mapped, as the .bss is addressed relative to %rip
+    private static final long MAX_STATIC_TAPE_SIZE = 1L << 30;
+    // mmap flags: MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE
+    private static final int MAP_FLAGS = 0x4022;
+    // sigaction flags: SA_RESTORER, which the kernel requires on x86-64
+    private static final long SA_RESTORER = 0x04000000;
+
+    private AsmCompiler() {
+    }
+
+    public static void compile(ArrayList<Ir.Node> program,
+			       String outputFile,
+			       TapeBounds bounds,
+			       int cellBits) {
+	compile(program, outputFile, bounds, cellBits, null);
+    }
+
+    public static void compile(ArrayList<Ir.Node> program,
+			       String outputFile,
+			       TapeBounds bounds,
+			       int cellBits,
+			       Profile profile) {
+
+	try(BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "utf-8"))) {
+	    compile(program, writer, bounds, cellBits, profile);
+	} catch(IOException ex) {
+	    throw new CompileException("Error writing to file " + outputFile, ex);
+	}
+    }
+
+    /**
+     * Writes the assembly of the program to the given Writer.
+     * Cells of 8, 16 and 32 bits are accessed as bytes, words and longs.
+     *
+     * @param program The program in its intermediate representation
+     * @param writer The Writer to write the assembly to
+     * @param bounds The cells the program can reach
+     * @param cellBits The width of a cell: 8, 16 or 32
+     */
+    public static void compile(ArrayList<Ir.Node> program,
+			       Writer writer,
+			       TapeBounds bounds,
+			       int cellBits) throws IOException {
+	compile(program, writer, bounds, cellBits, null);
+    }
+
+    /**
+     * Like compile, but the loops are laid out after a profile of the
+     * program. Hot loops start at an aligned address. Cold loops are moved
+     * behind the end of the program, so the code around them runs straight
+     * through and only jumps away if they run after all.
+     *
+     * @param profile A profile of the program's loops, or null
+     */
+    public static void compile(ArrayList<Ir.Node> program,
+			       Writer writer,
+			       TapeBounds bounds,
+			       int cellBits,
+			       Profile profile) throws IOException {
+	int size = cellBits / 8;
+	String suffix = cellBits == 8 ? "b" : cellBits == 16 ? "w" : "l";
+	String accumulator = cellBits == 8 ? "%al" : cellBits == 16 ? "%ax" : "%eax";
+	String load = cellBits == 8 ? "movzbl" : cellBits == 16 ? "movzwl" : "movl";
+	long mask = (1L << cellBits) - 1;
+	boolean mapped = !bounds.known || bounds.size() * size > MAX_STATIC_TAPE_SIZE;
+	// The furthest the pointer moves at once without a check
+	long guardedStep = mapped ? bounds.guardedStep() : Long.MAX_VALUE;
+	writer.write("\t.section .bss\n");
+	if(mapped) {
+	    writer.write("\t.lcomm lowest, 8\n");
+	    writer.write("\t.lcomm highest, 8\n");
+	} else {
+	    writer.write("\t.lcomm tape, " + bounds.size() * size + "\n");
+	}
+	writer.write("\t.lcomm outbuf, " + BUFFER_SIZE + "\n");
+	writer.write("\t.lcomm inbuf, " + BUFFER_SIZE + "\n\n");
+	writer.write("\t.text\n");
+	writer.write("\t.globl _start\n");
+	writer.write("_start:\n");
+	long guard = mapped ? bounds.guardSize(size) : 0;
+	if(mapped) {
+	    writeMappedTape(writer, bounds, guard, size);
+	} else {
+	    writer.write("\tleaq tape+" + bounds.origin() * size + "(%rip), %rbx\n");
+	}
+	writer.write("\txorl %r12d, %r12d\n");
+	writer.write("\txorl %r13d, %r13d\n");
+	writer.write("\txorl %r14d, %r14d\n");
+
+	// Write the program. Cold loops are written to cold, which follows it.
+	Writer code = writer;
+	StringWriter cold = new StringWriter();
+	int coldLoop = -1;
+	ArrayDeque<Integer> loops = new ArrayDeque<Integer>();
+	int labels = 0;
+	int loopCount = 0;
+	for(Ir.Node node : program) {
+	    switch(node.op) {
+	    case ADD:
+		code.write("\tadd" + suffix + " $" + (node.value & mask) + ", " + cell(node.offset, size) + "\n");
+		break;
+	    case MOVE:
+		code.write("\taddq $" + (long)node.value * size + ", %rbx\n");
+		if(Math.abs((long)node.value) > guardedStep) {
+		    check(code);
+		}
+		break;
+	    case SET:
+		code.write("\tmov" + suffix + " $" + (node.value & mask) + ", " + cell(node.offset, size) + "\n");
+		break;
+	    case MULADD:
+		if(node.value == 1 || node.value == -1) {
+		    code.write("\tmov" + suffix + " " + cell(node.source, size) + ", " + accumulator + "\n");
+		    code.write("\t" + (node.value < 0 ? "sub" : "add") + suffix + " " + accumulator + ", "
+				 + cell(node.offset, size) + "\n");
+		} else {
+		    code.write("\t" + load + " " + cell(node.source, size) + ", %eax\n");
+		    code.write("\timull $" + node.value + ", %eax, %eax\n");
+		    code.write("\tadd" + suffix + " " + accumulator + ", " + cell(node.offset, size) + "\n");
+		}
+		break;
+	    case OUTPUT:
+		// Only the lowest byte is written, which comes first in memory
+		beginRepeat(code, node.value);
+		code.write("\tmovzbl " + cell(node.offset, size) + ", %eax\n");
+		code.write("\tcall putc\n");
+		endRepeat(code, node.value);
+		break;
+	    case INPUT:
+		beginRepeat(code, node.value);
+		code.write("\tcall getc\n");
+		endRepeat(code, node.value);
+		code.write("\tmov" + suffix + " " + accumulator + ", " + cell(node.offset, size) + "\n");
+		break;
+	    case SCAN:
+		int scan = labels++;
+		code.write(".Lscan" + scan + ":\n");
+		code.write("\tcmp" + suffix + " $0, (%rbx)\n");
+		code.write("\tje .Lscanned" + scan + "\n");
+		code.write("\taddq $" + (long)node.value * size + ", %rbx\n");
+		if(Math.abs((long)node.value) > guardedStep) {
+		    check(code);
+		}
+		code.write("\tjmp .Lscan" + scan + "\n");
+		code.write(".Lscanned" + scan + ":\n");
+		break;
+	    case LOOPSTART:
+		int loop = labels++;
+		loops.push(loop);
+		code.write("\tcmp" + suffix + " $0, (%rbx)\n");
+		if(profile != null && coldLoop < 0 && profile.cold(loopCount)) {
+		    code.write("\tjne .Lstart" + loop + "\n");
+		    code.write(".Lstop" + loop + ":\n");
+		    coldLoop = loop;
+		    code = cold;
+		} else {
+		    code.write("\tje .Lstop" + loop + "\n");
+		    if(profile != null && profile.hot(loopCount)) {
+			code.write("\t.p2align 4\n");
+		    }
+		}
+		code.write(".Lstart" + loop + ":\n");
+		loopCount++;
+		break;
+	    case LOOPSTOP:
+		int start = loops.pop();
+		code.write("\tcmp" + suffix + " $0, (%rbx)\n");
+		code.write("\tjne .Lstart" + start + "\n");
+		if(start == coldLoop) {
+		    code.write("\tjmp .Lstop" + start + "\n");
+		    coldLoop = -1;
+		    code = writer;
+		} else {
+		    code.write(".Lstop" + start + ":\n");
+		}
+		break;
+	    }
+	}
+
+	writer.write("\tcall flush\n");
+	writer.write("\tmovl $60, %eax\n");
+	writer.write("\txorl %edi, %edi\n");
+	writer.write("\tsyscall\n\n");
+	writer.write(cold.toString());
+	writeRuntime(writer);
+	if(mapped) {
+	    writeFault(writer, guard);
+	}
+    }
+
+    /**
+     * Writes the code that maps the tape, protects its guards, points %rbx
+     * into it and lets fault handle a SIGSEGV.
+     */
+    private static void writeMappedTape(Writer writer, TapeBounds bounds, long guard, int size) throws IOException {
+	long tapeSize = TapeBounds.MAPPED_TAPE_SIZE * size;
+	// The pointer starts where every node addresses a cell of the tape
+	long start = Math.max(bounds.origin(), -(long)bounds.minOffset);
+	writer.write("\tmovl $9, %eax\n");
+	writer.write("\txorl %edi, %edi\n");
+	writer.write("\tmovabsq $" + (tapeSize + 2 * guard) + ", %rsi\n");
+	writer.write("\tmovl $3, %edx\n");
+	writer.write("\tmovl $" + MAP_FLAGS + ", %r10d\n");
+	writer.write("\tmovq $-1, %r8\n");
+	writer.write("\txorl %r9d, %r9d\n");
+	writer.write("\tsyscall\n");
+	writer.write("\tcmpq $-4095, %rax\n");
+	writer.write("\tjae nomap\n");
+	writer.write("\tmovq %rax, %rbx\n");
+	writer.write("\tmovq %rbx, %rdi\n");
+	writer.write("\tcall protect\n");
+	writer.write("\tmovabsq $" + (guard + tapeSize) + ", %rdi\n");
+	writer.write("\taddq %rbx, %rdi\n");
+	writer.write("\tcall protect\n");
+	// The limits check compares the pointer with
+	writer.write("\tmovabsq $" + (guard - (long)bounds.minOffset * size) + ", %rax\n");
+	writer.write("\taddq %rbx, %rax\n");
+	writer.write("\tmovq %rax, lowest(%rip)\n");
+	writer.write("\tmovabsq $" + (guard + tapeSize - (long)bounds.maxOffset * size) + ", %rax\n");
+	writer.write("\taddq %rbx, %rax\n");
+	writer.write("\tmovq %rax, highest(%rip)\n");
+	writer.write("\tmovabsq $" + (guard + start * size) + ", %rax\n");
+	writer.write("\taddq %rax, %rbx\n");
+	// rt_sigaction(SIGSEGV, &segv, NULL, 8)
+	writer.write("\tmovl $13, %eax\n");
+	writer.write("\tmovl $11, %edi\n");
+	writer.write("\tleaq segv(%rip), %rsi\n");
+	writer.write("\txorl %edx, %edx\n");
+	writer.write("\tmovl $8, %r10d\n");
+	writer.write("\tsyscall\n");
+    }
+
+    /**
+     * Writes protect, which makes the guard at %rdi inaccessible, and fault,
+     * which flushes the output and ends the program with a message once the
+     * pointer left the tape. A SIGSEGV from a guard ends up there as well.
+     */
+    private static void writeFault(Writer writer, long guard) throws IOException {
+	writer.write("\nprotect:\n");
+	writer.write("\tmovl $10, %eax\n");
+	writer.write("\tmovabsq $" + guard + ", %rsi\n");
+	writer.write("\txorl %edx, %edx\n");
+	writer.write("\tsyscall\n");
+	writer.write("\ttestq %rax, %rax\n");
+	writer.write("\tjnz nomap\n");
+	writer.write("\tret\n\n");
+
+	writer.write("fault:\n");
+	writer.write("\tcall flush\n");
+	writer.write("\tleaq left(%rip), %rsi\n");
+	writer.write("\tmovl $left_size, %edx\n");
+	writer.write("\tjmp 1f\n");
+	writer.write("nomap:\n");
+	writer.write("\tleaq unmapped(%rip), %rsi\n");
+	writer.write("\tmovl $unmapped_size, %edx\n");
+	writer.write("1:\tmovl $1, %eax\n");
+	writer.write("\tmovl $2, %edi\n");
+	writer.write("\tsyscall\n");
+	writer.write("\tmovl $60, %eax\n");
+	writer.write("\tmovl $1, %edi\n");
+	writer.write("\tsyscall\n\n");
+
+	// The handler never returns, but the kernel wants a restorer anyway
+	writer.write("\t.section .data\n");
+	writer.write("\t.p2align 3\n");
+	writer.write("segv:\t.quad fault, " + SA_RESTORER + ", fault, 0\n\n");
+	writer.write("\t.section .rodata\n");
+	writer.write("left:\t.ascii \"The pointer left the tape\\n\"\n");
+	writer.write("\t.set left_size, . - left\n");
+	writer.write("unmapped:\t.ascii \"Could not map the tape\\n\"\n");
+	writer.write("\t.set unmapped_size, . - unmapped\n");
+    }
+
+    /**
+     * Writes the check of a step too large for the guards.
+     */
+    private static void check(Writer writer) throws IOException {
+	writer.write("\tcmpq lowest(%rip), %rbx\n");
+	writer.write("\tjb fault\n");
+	writer.write("\tcmpq highest(%rip), %rbx\n");
+	writer.write("\tjae fault\n");
+    }
+
+    /**
+     * Writes the subroutines for buffered input and output.
+     */
+    private static void writeRuntime(Writer writer) throws IOException {
+	// putc appends %al to the output buffer and flushes it when full
+	writer.write("putc:\n");
+	writer.write("\tleaq outbuf(%rip), %rdx\n");
+	writer.write("\tmovb %al, (%rdx,%r12)\n");
+	writer.write("\tincq %r12\n");
+	writer.write("\tcmpq $" + BUFFER_SIZE + ", %r12\n");
+	writer.write("\tje flush\n");
+	writer.write("\tret\n\n");
+
+	// flush writes the output buffer to stdout
+	writer.write("flush:\n");
+	writer.write("\tleaq outbuf(%rip), %rsi\n");
+	writer.write("\tmovq %r12, %rdx\n");
+	writer.write("1:\ttestq %rdx, %rdx\n");
+	writer.write("\tjz 2f\n");
+	writer.write("\tmovl $1, %eax\n");
+	writer.write("\tmovl $1, %edi\n");
+	writer.write("\tsyscall\n");
+	writer.write("\ttestq %rax, %rax\n");
+	writer.write("\tjle 2f\n");
+	writer.write("\taddq %rax, %rsi\n");
+	writer.write("\tsubq %rax, %rdx\n");
+	writer.write("\tjmp 1b\n");
+	writer.write("2:\txorl %r12d, %r12d\n");
+	writer.write("\tret\n\n");
+
+	// getc returns the next input byte in %eax, 0 at the end of the input.
+	// Pending output is flushed before blocking on a read.
+	writer.write("getc:\n");
+	writer.write("\tcmpq %r14, %r13\n");
+	writer.write("\tjb 1f\n");
+	writer.write("\tcall flush\n");
+	writer.write("\txorl %eax, %eax\n");
+	writer.write("\txorl %edi, %edi\n");
+	writer.write("\tleaq inbuf(%rip), %rsi\n");
+	writer.write("\tmovl $" + BUFFER_SIZE + ", %edx\n");
+	writer.write("\tsyscall\n");
+	writer.write("\txorl %r13d, %r13d\n");
+	writer.write("\ttestq %rax, %rax\n");
+	writer.write("\tjle 2f\n");
+	writer.write("\tmovq %rax, %r14\n");
+	writer.write("1:\tleaq inbuf(%rip), %rdx\n");
+	writer.write("\tmovzbl (%rdx,%r13), %eax\n");
+	writer.write("\tincq %r13\n");
+	writer.write("\tret\n");
+	writer.write("2:\txorl %r14d, %r14d\n");
+	writer.write("\txorl %eax, %eax\n");
+	writer.write("\tret\n");
+    }
+
+    /**
+     * Starts code that is repeated count times, using %r15 as the counter.
+     */
+    private static void beginRepeat(Writer writer, int count) throws IOException {
+	if(count > 1) {
+	    writer.write("\tmovl $" + count + ", %r15d\n");
+	    writer.write("1:\n");
+	}
+    }
+
+    private static void endRepeat(Writer writer, int count) throws IOException {
+	if(count > 1) {
+	    writer.write("\tdecl %r15d\n");
+	    writer.write("\tjnz 1b\n");
+	}
+    }
+
+    /**
+     * @param size The number of bytes of a cell
+     * @return The operand of the cell at offset from the pointer, e.g. "3(%rbx)"
+     */
+    private static String cell(int offset, int size) {
+	return offset == 0 ? "(%rbx)" : (long)offset * size + "(%rbx)";
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in AsmCompiler.java");
+	testTapes();
+	testCellBits();
+	testLayout();
+
+	System.out.println("------\nDone.");
+    }
+
+    /**
+     * Assembles and links the program and runs it on the input.
+     *
+     * @return What it did, or null without an x86-64 Linux, as or ld
+     */
+    private static Compiler.Execution run(ArrayList<Ir.Node> program, int cellBits, Profile profile,
+					  String input) throws IOException {
+	if(!System.getProperty("os.name").equals("Linux") || !System.getProperty("os.arch").equals("amd64")) {
+	    return null;
+	}
+	File directory = Files.createTempDirectory("chris-asm-test").toFile();
+	File source = new File(directory, "prog.s");
+	File object = new File(directory, "prog.o");
+	File executable = new File(directory, "prog");
+	try {
+	    compile(program, source.getPath(), TapeBounds.analyze(program), cellBits, profile);
+	    if(!tool("as", source.getPath(), "-o", object.getPath())
+	       || !tool("ld", object.getPath(), "-o", executable.getPath())) {
+		return null;
+	    }
+	    return Compiler.execute(executable, input);
+	} finally {
+	    source.delete();
+	    object.delete();
+	    executable.delete();
+	    directory.delete();
+	}
+    }
+
+    private static Compiler.Execution run(String source, int cellBits, String input) throws IOException {
+	return run(Optimizer.optimize(source), cellBits, null, input);
+    }
+
+    /**
+     * Runs the assembler or the linker, which must succeed.
+     *
+     * @return Whether the tool exists
+     */
+    private static boolean tool(String... command) throws IOException {
+	Process process;
+	try {
+	    process = new ProcessBuilder(command).redirectErrorStream(true).start();
+	} catch(IOException ex) {
+	    return false;
+	}
+	String printed = new String(process.getInputStream().readAllBytes());
+	try {
+	    int status = process.waitFor();
+	    assert status == 0 : printed;
+	} catch(InterruptedException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	return true;
+    }
+
+    private static String code(String source, Profile profile) throws IOException {
+	ArrayList<Ir.Node> program = Optimizer.optimize(source);
+	StringWriter writer = new StringWriter();
+	compile(program, writer, TapeBounds.analyze(program), 8, profile);
+	return writer.toString();
+    }
+
+    private static void testTapes() {
+	System.out.println("Starting to test tapes");
+	try {
+	    // Known bounds fit into the .bss
+	    String source = "A".repeat(65) + "O" + "R".repeat(3) + "A".repeat(66) + "O";
+	    assert code(source, null).contains(".lcomm tape, 4\n");
+	    Compiler.Execution execution = run(source, 8, "");
+	    if(execution == null) {
+		System.out.println("No assembler, skipped");
+		return;
+	    }
+	    assert execution.status == 0 && execution.output.equals("AB") : execution.output;
+
+	    // Scans need the mapped tape
+	    source = "RARARARA{L}" + "A".repeat(65) + "O{R}" + "A".repeat(66) + "O";
+	    assert !code(source, null).contains(".lcomm tape");
+	    execution = run(source, 8, "");
+	    assert execution.status == 0 && execution.output.equals("AB") : execution.output;
+
+	    // Small steps run into a guard, large ones are checked
+	    String output = "A".repeat(65) + "O";
+	    String far = output + "{" + "L".repeat(70000) + "A}";
+	    assert !code(output + "{LA}", null).contains("jb fault") && code(far, null).contains("jb fault");
+	    for(String program : new String[] {output + "{LA}", far}) {
+		execution = run(program, 8, "");
+		assert execution.status == 1 && execution.output.equals("A") : execution.output;
+		assert execution.errors.equals("The pointer left the tape\n") : execution.errors;
+	    }
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testCellBits() {
+	System.out.println("Starting to test cell widths");
+	try {
+	    // 256 and 65536 wrap around to 0 in narrower cells
+	    String source = "R" + "A".repeat(65) + "L" + "A".repeat(256) + "{ROL{D}}"
+		+ "RR" + "A".repeat(65536) + "{LOR{D}}";
+	    String[] expected = {"", "A", "AA"};
+	    for(int width = 0; width < 3; width++) {
+		Compiler.Execution execution = run(source, 8 << width, "");
+		if(execution == null) {
+		    System.out.println("No assembler, skipped");
+		    return;
+		}
+		assert execution.output.equals(expected[width]) : (8 << width) + " " + execution.output;
+
+		// At the end of the input, cells read 0
+		execution = run("IOI" + "A".repeat(65) + "O" + "I{OI}", 8 << width, "h");
+		assert execution.status == 0 && execution.output.equals("hA") : execution.output;
+		execution = run("I{OI}", 8 << width, "hello, world");
+		assert execution.output.equals("hello, world") : execution.output;
+	    }
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testLayout() {
+	System.out.println("Starting to test the layout of profiled loops");
+	try {
+	    // The first loop never ran, the second one did but its profile is stale
+	    String source = "{O}R" + "A".repeat(65) + "LAAA{DROL}";
+	    Profile profile = new Profile(2);
+	    String code = code(source, profile);
+	    assert code.indexOf(".Lstart0:") > code.indexOf("\tsyscall\n") : code;
+	    assert code.indexOf(".Lstart1:") > code.indexOf("\tsyscall\n") : code;
+	    Compiler.Execution execution = run(Optimizer.optimize(source), 8, profile, "");
+	    if(execution == null) {
+		System.out.println("No assembler, skipped");
+		return;
+	    }
+	    assert execution.status == 0 && execution.output.equals("AAA") : execution.output;
+
+	    // Hot loops stay in place
+	    profile.entries[1] = 1;
+	    profile.iterations[1] = Profile.MIN_HOT_ITERATIONS;
+	    code = code(source, profile);
+	    assert code.indexOf(".Lstart1:") < code.indexOf("\tsyscall\n") && code.contains(".p2align 4") : code;
+	    execution = run(Optimizer.optimize(source), 8, profile, "");
+	    assert execution.status == 0 && execution.output.equals("AAA") : execution.output;
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+}
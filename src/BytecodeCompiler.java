@@ -0,0 +1,670 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import src.Ir;
+import src.TapeBounds;
+import src.CompileException;
+import src.lib.ClassWriter;
+
+/**
+ * BytecodeCompiler translates a program into a JVM class, which can be
+ * loaded and run right away, or be written to a .class or .jar file.
+ * This way HotSpot compiles the program to machine code, without a C
+ * compiler being needed.
+ *
+ * The generated class has the methods
+ *     public static int run(byte[] tape, int pointer, InputStream in, OutputStream out)
+ *     public static void main(String[] args)
+ * where run executes the program on the tape and returns the final pointer.
+ * A program of known bounds gets a tape of just their size and starts at
+ * their origin. Other programs get a tape of MIN_TAPE_SIZE cells and start
+ * far enough right for the cells they are known to reach and the offsets
+ * of the nodes. Their tape grows: every move of the pointer calls the
+ * generated method check, which replaces a tape that is too small by a
+ * bigger copy. The current tape is kept in a static field as well, so
+ * the methods a big program is split into see each other's copies.
+ * Depending on the width of the cells, the tape is a byte[], short[] or
+ * int[], whose stores wrap the cells around. Loops compiled for the
+ * Interpreter run on its int[] tape and mask the cells instead.
+ */
+public class BytecodeCompiler {
+    private static final String DEFAULT_CLASS_NAME = "ChrisProgram";
+    private static final String RANGE_CLASS_NAME = "ChrisLoop";
+    // The cells of the tape of a program whose bounds are unknown
+    private static final int MIN_TAPE_SIZE = 1 << 16;
+
+    // The local variables of every generated method
+    private static final int TAPE = 0;
+    private static final int POINTER = 1;
+    private static final int IN = 2;
+    private static final int OUT = 3;
+    private static final int COUNTER = 4;
+    private static final int LOCALS = 5;
+    private static final int MAX_STACK = 8;
+
+    /**
+     * Bigger parts of the program are split into methods of their own, as
+     * the code of a method is limited to 64 KiB. Smaller methods are
+     * also compiled earlier by the JIT.
+     */
+    private static final int METHOD_LIMIT = 1 << 14;
+    // An upper bound of the bytes emitted for one output or input loop
+    private static final int IO_SIZE = 64;
+    // An upper bound of the bytes emitted for every other node
+    private static final int NODE_SIZE = 32;
+
+    private ArrayList<Ir.Node> program;
+    private String className;
+    private int cellBits;
+    private boolean masked;
+    // Whether the tape grows, and the offset check makes room for
+    private boolean checked;
+    private int maxOffset;
+    private String runDescriptor;
+    private ClassWriter writer;
+    private int[] matches;
+    private long[] sizes;
+    private int methodCount;
+
+    /**
+     * @param bounds The cells the program can reach, or null for a range
+     * that runs on the tape of the Interpreter
+     */
+    private BytecodeCompiler(ArrayList<Ir.Node> program, String className, TapeBounds bounds,
+			     int cellBits, boolean masked) {
+	this.program = program;
+	this.className = className;
+	this.cellBits = cellBits;
+	this.masked = masked;
+	this.checked = bounds != null && !bounds.known;
+	this.maxOffset = bounds != null ? bounds.maxOffset : 0;
+	this.runDescriptor = "(" + tapeDescriptor() + "ILjava/io/InputStream;Ljava/io/OutputStream;)I";
+	this.writer = new ClassWriter(className);
+	this.methodCount = 0;
+
+	// sizes[index] is the upper bound of the code of program[0, index)
+	sizes = new long[program.size() + 1];
+	matches = new int[program.size()];
+	ArrayDeque<Integer> loops = new ArrayDeque<Integer>();
+	for(int index = 0; index < program.size(); index++) {
+	    Ir.Node node = program.get(index);
+	    boolean io = node.op == Ir.Op.INPUT || node.op == Ir.Op.OUTPUT;
+	    sizes[index + 1] = sizes[index] + (io ? IO_SIZE : NODE_SIZE);
+	    if(node.op == Ir.Op.LOOPSTART) {
+		loops.push(index);
+	    } else if(node.op == Ir.Op.LOOPSTOP) {
+		int start = loops.pop();
+		matches[start] = index;
+		matches[index] = start;
+	    }
+	}
+    }
+
+    /**
+     * Compiles a program into a class file.
+     *
+     * @param program The program to compile
+     * @param className The binary name of the generated class
+     * @param bounds The cells the program can reach
+     * @param cellBits The width of a cell: 8, 16 or 32
+     * @return The contents of the class file
+     */
+    public static byte[] compile(ArrayList<Ir.Node> program, String className, TapeBounds bounds, int cellBits) {
+	BytecodeCompiler compiler = new BytecodeCompiler(program, className.replace('.', '/'), bounds, cellBits, false);
+	compiler.emitRun();
+	if(compiler.checked) {
+	    compiler.emitCheck();
+	}
+	compiler.emitMain(tapeSize(bounds), start(bounds));
+	return compiler.writer.toByteArray();
+    }
+
+    /**
+     * Compiles a program and writes it to outputFile. If its name ends in
+     * ".jar", an executable jar is written, otherwise a class file.
+     * The class is named after the output file. The JVM only finds a class
+     * in a file of the same name, so other names of class files are rejected.
+     */
+    public static void write(ArrayList<Ir.Node> program, String outputFile,
+			     TapeBounds bounds, int cellBits) throws IOException {
+	String className = classNameOf(outputFile);
+	if(!outputFile.endsWith(".jar") && !new java.io.File(outputFile).getName().equals(className + ".class")) {
+	    throw new CompileException("The class in " + outputFile + " is called " + className
+				       + ", so the file has to be " + className + ".class");
+	}
+	byte[] bytes = compile(program, className, bounds, cellBits);
+	try(FileOutputStream file = new FileOutputStream(outputFile)) {
+	    if(!outputFile.endsWith(".jar")) {
+		file.write(bytes);
+		return;
+	    }
+	    Manifest manifest = new Manifest();
+	    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+	    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+	    try(JarOutputStream jar = new JarOutputStream(file, manifest)) {
+		jar.putNextEntry(new JarEntry(className + ".class"));
+		jar.write(bytes);
+		jar.closeEntry();
+	    }
+	}
+    }
+
+    /**
+     * Compiles the program, loads it and runs it.
+     *
+     * @param program The program to run
+     * @param bounds The cells the program can reach
+     * @param cellBits The width of a cell: 8, 16 or 32
+     * @param in The stream INPUT reads from
+     * @param out The stream OUTPUT writes to. It is flushed when the program ends.
+     */
+    public static void run(ArrayList<Ir.Node> program, TapeBounds bounds, int cellBits,
+			   InputStream in, OutputStream out) throws IOException {
+	byte[] bytes = compile(program, DEFAULT_CLASS_NAME, bounds, cellBits);
+	Class<?> programClass = new Loader().define(DEFAULT_CLASS_NAME, bytes);
+	BufferedOutputStream bufferedOut = new BufferedOutputStream(out, 1 << 16);
+	int size = tapeSize(bounds);
+	Object tape = cellBits == 8 ? new byte[size] : cellBits == 16 ? new short[size] : new int[size];
+	try {
+	    Method run = programClass.getMethod("run", tape.getClass(), int.class,
+						InputStream.class, OutputStream.class);
+	    run.invoke(null, tape, start(bounds), new BufferedInputStream(in), bufferedOut);
+	    bufferedOut.flush();
+	} catch(InvocationTargetException ex) {
+	    Throwable cause = ex.getCause();
+	    if(cause instanceof IOException) {
+		throw (IOException)cause;
+	    }
+	    if(cause instanceof ArrayIndexOutOfBoundsException) {
+		throw new IOException("The pointer left the tape", cause);
+	    }
+	    throw new IllegalStateException(cause);
+	} catch(ReflectiveOperationException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    /**
+     * Compiles a part of a program, e.g. a single loop, and loads it.
+     * The range has to contain whole loops only. It runs on an int[] tape,
+     * whose cells are masked to cellBits.
+     *
+     * @param program The program the range is a part of
+     * @param from The index of the first node to compile
+     * @param to The index behind the last node to compile
+     * @param cellBits The width of a cell: 8, 16 or 32
+     * @return The run method of the compiled range
+     */
+    public static MethodHandle compileRange(ArrayList<Ir.Node> program, int from, int to, int cellBits) {
+	BytecodeCompiler compiler = new BytecodeCompiler(new ArrayList<Ir.Node>(program.subList(from, to)),
+							 RANGE_CLASS_NAME, null, cellBits, true);
+	compiler.emitRun();
+	Class<?> rangeClass = new Loader().define(RANGE_CLASS_NAME, compiler.writer.toByteArray());
+	try {
+	    return MethodHandles.publicLookup().findStatic(rangeClass, "run",
+		MethodType.methodType(int.class, int[].class, int.class, InputStream.class, OutputStream.class));
+	} catch(ReflectiveOperationException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    /**
+     * @return The number of cells of the tape of a program
+     */
+    private static int tapeSize(TapeBounds bounds) {
+	return bounds.known ? (int)bounds.size() : Math.max(MIN_TAPE_SIZE, start(bounds) + bounds.maxOffset + 1);
+    }
+
+    /**
+     * @return The cell a program starts at
+     */
+    private static int start(TapeBounds bounds) {
+	return bounds.known ? (int)bounds.origin() : (int)Math.max(bounds.origin(), -(long)bounds.minOffset);
+    }
+
+    /**
+     * @return A valid class name, derived from the name of the file
+     */
+    static String classNameOf(String fileName) {
+	String name = new java.io.File(fileName).getName();
+	int dot = name.indexOf('.');
+	if(dot >= 0) {
+	    name = name.substring(0, dot);
+	}
+	StringBuilder builder = new StringBuilder();
+	for(char character : name.toCharArray()) {
+	    builder.append(Character.isJavaIdentifierPart(character) ? character : '_');
+	}
+	if(builder.length() == 0 || !Character.isJavaIdentifierStart(builder.charAt(0))) {
+	    builder.insert(0, '_');
+	}
+	return builder.toString();
+    }
+
+    private void emitRun() {
+	ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+						 "run", runDescriptor, MAX_STACK, LOCALS);
+	if(checked) {
+	    writer.addField(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC, "tape", tapeDescriptor());
+	    code.local(ClassWriter.ALOAD, TAPE);
+	    code.emit(ClassWriter.PUTSTATIC, writer.fieldRef(className, "tape", tapeDescriptor()));
+	}
+	emitRange(code, 0, program.size());
+	code.local(ClassWriter.ILOAD, POINTER);
+	code.emit(ClassWriter.IRETURN);
+    }
+
+    /**
+     * Emits check(tape, pointer), which returns the tape if every offset
+     * from the pointer is inside of it, and otherwise a copy that is at
+     * least twice as big. The copy becomes the tape of the field as well.
+     * Cells left of the tape are left to the bounds checks of the JVM.
+     */
+    private void emitCheck() {
+	String descriptor = tapeDescriptor();
+	ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC,
+						 "check", "(" + descriptor + "I)" + descriptor, MAX_STACK, 2);
+	code.local(ClassWriter.ILOAD, POINTER);
+	code.pushInt(maxOffset);
+	code.emit(ClassWriter.IADD);
+	code.local(ClassWriter.ALOAD, TAPE);
+	code.emit(ClassWriter.ARRAYLENGTH);
+	int grow = code.branch(ClassWriter.IF_ICMPGE);
+	code.local(ClassWriter.ALOAD, TAPE);
+	code.emit(ClassWriter.ARETURN);
+
+	code.patch(grow, code.size());
+	code.local(ClassWriter.ALOAD, TAPE);
+	code.local(ClassWriter.ALOAD, TAPE);
+	code.emit(ClassWriter.ARRAYLENGTH);
+	code.pushInt(2);
+	code.emit(ClassWriter.IMUL);
+	code.local(ClassWriter.ILOAD, POINTER);
+	code.pushInt(maxOffset + 1);
+	code.emit(ClassWriter.IADD);
+	code.emit(ClassWriter.INVOKESTATIC, writer.methodRef("java/lang/Math", "max", "(II)I"));
+	code.emit(ClassWriter.INVOKESTATIC, writer.methodRef("java/util/Arrays", "copyOf",
+							      "(" + descriptor + "I)" + descriptor));
+	code.emit(ClassWriter.DUP);
+	code.emit(ClassWriter.PUTSTATIC, writer.fieldRef(className, "tape", descriptor));
+	code.emit(ClassWriter.ARETURN);
+    }
+
+    /**
+     * Emits the call of check after a move of the pointer.
+     */
+    private void emitCheckCall(ClassWriter.Code code) {
+	if(checked) {
+	    code.local(ClassWriter.ALOAD, TAPE);
+	    code.local(ClassWriter.ILOAD, POINTER);
+	    code.emit(ClassWriter.INVOKESTATIC, writer.methodRef(className, "check",
+								  "(" + tapeDescriptor() + "I)" + tapeDescriptor()));
+	    code.local(ClassWriter.ASTORE, TAPE);
+	}
+    }
+
+    /**
+     * Emits main, which runs the program on a new tape with the standard streams.
+     *
+     * @param tapeSize The number of cells of the tape
+     * @param start The cell the program starts at
+     */
+    private void emitMain(int tapeSize, int start) {
+	ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+						 "main", "([Ljava/lang/String;)V", MAX_STACK, 2);
+	code.pushInt(tapeSize);
+	code.emit(ClassWriter.NEWARRAY);
+	code.emit(cellBits == 8 ? ClassWriter.T_BYTE : cellBits == 16 ? ClassWriter.T_SHORT : ClassWriter.T_INT);
+	code.pushInt(start);
+	code.emit(ClassWriter.NEW, writer.classRef("java/io/BufferedInputStream"));
+	code.emit(ClassWriter.DUP);
+	code.emit(ClassWriter.GETSTATIC, writer.fieldRef("java/lang/System", "in", "Ljava/io/InputStream;"));
+	code.emit(ClassWriter.INVOKESPECIAL, writer.methodRef("java/io/BufferedInputStream", "<init>",
+							      "(Ljava/io/InputStream;)V"));
+	code.emit(ClassWriter.NEW, writer.classRef("java/io/BufferedOutputStream"));
+	code.emit(ClassWriter.DUP);
+	code.emit(ClassWriter.GETSTATIC, writer.fieldRef("java/lang/System", "out", "Ljava/io/PrintStream;"));
+	code.pushInt(1 << 16);
+	code.emit(ClassWriter.INVOKESPECIAL, writer.methodRef("java/io/BufferedOutputStream", "<init>",
+							      "(Ljava/io/OutputStream;I)V"));
+	code.emit(ClassWriter.DUP);
+	code.local(ClassWriter.ASTORE, 1);
+	code.emit(ClassWriter.INVOKESTATIC, writer.methodRef(className, "run", runDescriptor));
+	code.emit(ClassWriter.POP);
+	code.local(ClassWriter.ALOAD, 1);
+	code.emit(ClassWriter.INVOKEVIRTUAL, writer.methodRef("java/io/OutputStream", "flush", "()V"));
+	code.emit(ClassWriter.RETURN);
+    }
+
+    /**
+     * Emits program[from, to), which has to contain whole loops only.
+     * Ranges that are too big for one method are split in two, each half
+     * becoming a method of its own. A single loop that is too big keeps
+     * its condition here, its body becomes a method.
+     */
+    private void emitRange(ClassWriter.Code code, int from, int to) {
+	if(sizes[to] - sizes[from] <= METHOD_LIMIT) {
+	    emitInline(code, from, to);
+	    return;
+	}
+	int end = program.get(from).op == Ir.Op.LOOPSTART ? matches[from] + 1 : from + 1;
+	if(end == to) {
+	    // A single loop, that is too big
+	    int start = emitLoopStart(code);
+	    emitCall(code, from + 1, to - 1);
+	    emitLoopStop(code, start);
+	    return;
+	}
+	// Split at the first top-level node that reaches the middle
+	long middle = (sizes[from] + sizes[to]) / 2;
+	int split = end;
+	while(sizes[split] < middle) {
+	    int next = program.get(split).op == Ir.Op.LOOPSTART ? matches[split] + 1 : split + 1;
+	    if(next == to) {
+		break;
+	    }
+	    split = next;
+	}
+	emitCall(code, from, split);
+	emitCall(code, split, to);
+    }
+
+    /**
+     * Emits program[from, to) as a new method and a call to it.
+     */
+    private void emitCall(ClassWriter.Code code, int from, int to) {
+	String name = "block" + methodCount++;
+	ClassWriter.Code method = writer.addMethod(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC,
+						   name, runDescriptor, MAX_STACK, LOCALS);
+	emitRange(method, from, to);
+	method.local(ClassWriter.ILOAD, POINTER);
+	method.emit(ClassWriter.IRETURN);
+
+	code.local(ClassWriter.ALOAD, TAPE);
+	code.local(ClassWriter.ILOAD, POINTER);
+	code.local(ClassWriter.ALOAD, IN);
+	code.local(ClassWriter.ALOAD, OUT);
+	code.emit(ClassWriter.INVOKESTATIC, writer.methodRef(className, name, runDescriptor));
+	code.local(ClassWriter.ISTORE, POINTER);
+	if(checked) {
+	    // The method may have grown the tape
+	    code.emit(ClassWriter.GETSTATIC, writer.fieldRef(className, "tape", tapeDescriptor()));
+	    code.local(ClassWriter.ASTORE, TAPE);
+	}
+    }
+
+    private void emitInline(ClassWriter.Code code, int from, int to) {
+	ArrayDeque<Integer> loops = new ArrayDeque<Integer>();
+	for(int index = from; index < to; index++) {
+	    Ir.Node node = program.get(index);
+	    switch(node.op) {
+	    case ADD:
+		pushCell(code, node.offset);
+		code.emit(ClassWriter.DUP2);
+		load(code);
+		code.pushInt(node.value);
+		code.emit(ClassWriter.IADD);
+		store(code);
+		break;
+	    case MOVE:
+		code.increment(POINTER, node.value);
+		emitCheckCall(code);
+		break;
+	    case SET:
+		pushCell(code, node.offset);
+		code.pushInt(node.value);
+		store(code);
+		break;
+	    case MULADD:
+		pushCell(code, node.offset);
+		code.emit(ClassWriter.DUP2);
+		load(code);
+		pushCell(code, node.source);
+		load(code);
+		code.pushInt(node.value);
+		code.emit(ClassWriter.IMUL);
+		code.emit(ClassWriter.IADD);
+		store(code);
+		break;
+	    case OUTPUT:
+		// A loop writes all characters, or the write is unrolled
+		int copies = node.value > 2 ? 1 : node.value;
+		for(int copy = 0; copy < copies; copy++) {
+		    int start = beginRepeat(code, node.value);
+		    code.local(ClassWriter.ALOAD, OUT);
+		    pushCell(code, node.offset);
+		    load(code);
+		    code.emit(ClassWriter.INVOKEVIRTUAL, writer.methodRef("java/io/OutputStream", "write", "(I)V"));
+		    endRepeat(code, node.value, start);
+		}
+		break;
+	    case INPUT:
+		// Only the last character is kept, the others are skipped like the output is written
+		int skipped = node.value - 1;
+		int skips = skipped > 2 ? 1 : skipped;
+		for(int skip = 0; skip < skips; skip++) {
+		    int start = beginRepeat(code, skipped);
+		    code.local(ClassWriter.ALOAD, IN);
+		    code.emit(ClassWriter.INVOKEVIRTUAL, writer.methodRef("java/io/InputStream", "read", "()I"));
+		    code.emit(ClassWriter.POP);
+		    endRepeat(code, skipped, start);
+		}
+		pushCell(code, node.offset);
+		code.local(ClassWriter.ALOAD, IN);
+		code.emit(ClassWriter.INVOKEVIRTUAL, writer.methodRef("java/io/InputStream", "read", "()I"));
+		// character & ~(character >> 31) turns the -1 at the end of the input into 0
+		code.emit(ClassWriter.DUP);
+		code.pushInt(31);
+		code.emit(ClassWriter.ISHR);
+		code.pushInt(-1);
+		code.emit(ClassWriter.IXOR);
+		code.emit(ClassWriter.IAND);
+		store(code);
+		break;
+	    case SCAN:
+		int scan = code.size();
+		pushCell(code, 0);
+		load(code);
+		int done = code.branch(ClassWriter.IFEQ);
+		code.increment(POINTER, node.value);
+		emitCheckCall(code);
+		code.branch(ClassWriter.GOTO, scan);
+		code.patch(done, code.size());
+		break;
+	    case LOOPSTART:
+		loops.push(emitLoopStart(code));
+		break;
+	    case LOOPSTOP:
+		emitLoopStop(code, loops.pop());
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Emits the check of a loop, that skips it if the current cell is zero.
+     *
+     * @return The position of the check, to be passed to emitLoopStop
+     */
+    private int emitLoopStart(ClassWriter.Code code) {
+	pushCell(code, 0);
+	load(code);
+	return code.branch(ClassWriter.IFEQ);
+    }
+
+    /**
+     * Emits the check at the end of a loop, that jumps back to its body if
+     * the current cell is not zero.
+     */
+    private void emitLoopStop(ClassWriter.Code code, int start) {
+	pushCell(code, 0);
+	load(code);
+	code.branch(ClassWriter.IFNE, start + 3);
+	code.patch(start, code.size());
+    }
+
+    /**
+     * Starts code that is repeated count times. More than two repetitions
+     * become a loop over the COUNTER variable, otherwise the code is just
+     * emitted twice by the caller.
+     *
+     * @return The position of the repeated code, to be passed to endRepeat
+     */
+    private int beginRepeat(ClassWriter.Code code, int count) {
+	if(count > 2) {
+	    code.pushInt(count);
+	    code.local(ClassWriter.ISTORE, COUNTER);
+	}
+	return code.size();
+    }
+
+    private void endRepeat(ClassWriter.Code code, int count, int start) {
+	if(count > 2) {
+	    code.increment(COUNTER, -1);
+	    code.local(ClassWriter.ILOAD, COUNTER);
+	    code.branch(ClassWriter.IFNE, start);
+	}
+    }
+
+    /**
+     * @return The descriptor of the tape, e.g. "[B" for 8-bit cells
+     */
+    private String tapeDescriptor() {
+	if(masked || cellBits == 32) {
+	    return "[I";
+	}
+	return cellBits == 16 ? "[S" : "[B";
+    }
+
+    /**
+     * Replaces the tape and index on the stack with the cell.
+     */
+    private void load(ClassWriter.Code code) {
+	if(masked || cellBits == 32) {
+	    code.emit(ClassWriter.IALOAD);
+	} else {
+	    code.emit(cellBits == 16 ? ClassWriter.SALOAD : ClassWriter.BALOAD);
+	}
+    }
+
+    /**
+     * Stores the value on the stack in the cell, wrapping it around.
+     */
+    private void store(ClassWriter.Code code) {
+	if(masked && cellBits < 32) {
+	    code.pushInt((1 << cellBits) - 1);
+	    code.emit(ClassWriter.IAND);
+	}
+	if(masked || cellBits == 32) {
+	    code.emit(ClassWriter.IASTORE);
+	} else {
+	    code.emit(cellBits == 16 ? ClassWriter.SASTORE : ClassWriter.BASTORE);
+	}
+    }
+
+    /**
+     * Pushes the tape and the index of the cell at offset from the pointer.
+     */
+    private void pushCell(ClassWriter.Code code, int offset) {
+	code.local(ClassWriter.ALOAD, TAPE);
+	code.local(ClassWriter.ILOAD, POINTER);
+	if(offset != 0) {
+	    code.pushInt(offset);
+	    code.emit(ClassWriter.IADD);
+	}
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in BytecodeCompiler.java");
+	testInput();
+	testOrigin();
+	testGrow();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static String run(String source, String input) throws IOException {
+	ArrayList<Ir.Node> program = Optimizer.optimize(source);
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	run(program, TapeBounds.analyze(program), 8, new ByteArrayInputStream(input.getBytes()), out);
+	return out.toString();
+    }
+
+    private static void testInput() {
+	System.out.println("Starting to test input");
+	try {
+	    // Repeated inputs keep the last character, however they are emitted
+	    assert run("IIO", "abc").equals("b");
+	    assert run("IIIO", "abc").equals("c");
+	    assert run("IIIIO", "abcde").equals("d");
+	    assert run("A{IIIO}", "abcdefghi").equals("cfi\0");
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testOrigin() {
+	System.out.println("Starting to test the origin");
+	try {
+	    // Cells left of the first one are on the tape as well
+	    assert run("L" + "A".repeat(65) + "O", "").equals("A");
+	    assert run("LLLORAR" + "A".repeat(66) + "O{L}RO", "").equals("\0B\1");
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testGrow() {
+	System.out.println("Starting to test growing the tape");
+	try {
+	    // A loop carries a counter far past the first MIN_TAPE_SIZE cells
+	    String far = "R".repeat(1 << 15);
+	    String back = "L".repeat(1 << 15);
+	    assert run("AAAAA{{D" + far + "A" + back + "}" + far + "D}AO", "").equals("\1");
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	try {
+	    run("A{LA}", "");
+	    assert false : "The pointer moved left of the tape";
+	} catch(IOException ex) {
+	    assert ex.getMessage().equals("The pointer left the tape") : ex;
+	}
+	System.out.println("Done.");
+    }
+
+    /**
+     * Loads generated classes. Every program gets a loader of its own, so
+     * the classes can be unloaded again.
+     */
+    private static class Loader extends ClassLoader {
+	Loader() {
+	    super(BytecodeCompiler.class.getClassLoader());
+	}
+
+	Class<?> define(String name, byte[] bytes) {
+	    return defineClass(name, bytes, 0, bytes.length);
+	}
+    }
+}
@@ -4,14 +4,31 @@ import src.lib.ArgumentParser;
 import src.lib.ArgumentPosition;
 
 import src.Lexer;
+import src.Ir;
+import src.Optimizer;
+import src.TapeBounds;
+import src.Interpreter;
+import src.BytecodeCompiler;
+import src.AsmCompiler;
 import src.Compiler;
+import src.CompileException;
+import src.CompileCache;
+import src.CompileServer;
+import src.Stats;
+import src.StreamCompiler;
+import src.PartialEvaluator;
+import src.Profile;
+import src.Toolchain;
 
 import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
@@ -31,64 +48,594 @@ public class Chris {
 	//ArgumentParser.testAll();
 	//Lexer.testAll();
 
+	int status = execute(args, null, System.out);
+	if(status != 0) {
+	    System.exit(status);
+	}
+    }
+
+    /**
+     * Does everything main does, but reports to out and returns the exit
+     * status instead of exiting, so a CompileServer can run it as well.
+     *
+     * @param args The commandline arguments
+     * @param workingDirectory The directory relative paths start in, null for the current one
+     * @param out The stream messages are printed to
+     * @return The exit status: 0 on success, 20 for invalid arguments, -1 for failed compiles
+     */
+    static int execute(String[] args, File workingDirectory, PrintStream out) {
 	ArgumentParser parser = new ArgumentParser("Usage: java -jar Chris.jar [switches] [options] [files...]");
-	parser.addOption("-o", "--output", "FILE", "The file to write to");
+	parser.addOption("-o", "--output", "FILE", "The file to write to, or the directory for several files");
+	parser.addOption("-b", "--backend", "BACKEND", "c (default), jvm or asm. Without -o, jvm runs the program");
+	parser.addOption("-t", "--tier-threshold", "N", "Loop iterations before --run compiles a loop, 0 never does");
+	parser.addOption("-c", "--cell-bits", "BITS", "The width of a cell: 8 (default), 16 or 32");
+	parser.addOption("-j", "--jobs", "N", "The number of files compiled at once (default: one per core)");
+	parser.addOption("-k", "--cache", "DIR", "Reuse programs compiled before, which are kept in DIR");
+	parser.addOption("-s", "--cache-size", "MIB", "The size of the cache in MiB (default: 256)");
+	parser.addOption("-S", "--serve", "SOCKET", "Serve compile requests on a unix socket, in a directory only you can access");
+	parser.addOption("-C", "--connect", "SOCKET", "Let the server on the unix socket compile instead");
+	parser.addOption("-f", "--stats-format", "FORMAT", "text (default) or json, the format of --stats");
+	parser.addOption("-e", "--eval-budget", "STEPS", "Run the start of the program while compiling, at most STEPS nodes (c only, 0 disables)");
+	parser.addOption("-g", "--profile-generate", "FILE", "Run the program and write how often its loops ran to FILE");
+	parser.addOption("-u", "--profile-use", "FILE", "Spend the effort on the loops that were hot in the profile FILE");
+	parser.addOption("-x", "--cc", "COMMAND", "The C compiler of --native and its flags (default: $CC -O2, or cc -O2), not through a server");
 	
 	parser.addSwitch("-d", "--debug", "Run tests before compiling");
+	parser.addSwitch("-r", "--run", "Run the program instead of compiling it");
+	parser.addSwitch("-P", "--stats", "Report the time and memory every phase of compiling takes");
+	parser.addSwitch("-m", "--mmap", "Map a tape of unknown size lazily instead of growing it (c only)");
+	parser.addSwitch("-w", "--stream", "Translate while reading, in constant memory, for huge programs (c only)");
+	parser.addSwitch("-n", "--native", "Pipe the C code into the C compiler and write an executable (c only). Only with -w does the C compiler start before the whole program is read and optimized");
 	
 	parser.searchPositionalsAt(ArgumentPosition.BACK);
 
 	if(!parser.parse(args)) {
-	    System.out.println(parser.getUsage());
-	    System.exit(20);
+	    out.println(parser.getUsage());
+	    return 20;
 	}
 
 	HashMap<String, Boolean> switches = parser.getSwitches();
 	HashMap<String, String> options = parser.getOptions();
 	ArrayList<String> files = parser.getPositionals();
 
+	if(options.get("--serve") != null || options.get("--connect") != null) {
+	    String option = options.get("--serve") != null ? "--serve" : "--connect";
+	    String socketFile = options.get(option);
+	    if(workingDirectory != null) {
+		out.println("A server cannot " + option.substring(2));
+		return 20;
+	    }
+	    try {
+		if(option.equals("--serve")) {
+		    CompileServer server = new CompileServer(socketFile);
+		    out.println("Serving on " + server.path());
+		    server.serve();
+		    return 0;
+		}
+		return CompileServer.request(socketFile, withoutOption(args, "-C", "--connect"),
+					     new File("").getAbsoluteFile(), out);
+	    } catch(IOException ex) {
+		out.println("Error " + (option.equals("--serve") ? "serving" : "connecting") + " on "
+			    + socketFile + ": " + ex.getMessage());
+		return -1;
+	    }
+	}
+	for(int index = 0; index < files.size(); index++) {
+	    files.set(index, resolve(workingDirectory, files.get(index)));
+	}
+
+	Settings settings = new Settings();
 	boolean debug = switches.get("--debug");
-	String outputFile = options.get("output");
-	if(outputFile == null) {
-	    outputFile = "out.c";
+	settings.run = switches.get("--run");
+	settings.mapped = switches.get("--mmap");
+	settings.stream = switches.get("--stream");
+	String outputFile = options.get("--output");
+	String backend = options.get("--backend");
+	if(backend != null) {
+	    settings.backend = backend;
+	}
+	if(!settings.backend.equals("c") && !settings.backend.equals("jvm") && !settings.backend.equals("asm")) {
+	    out.println("Unknown backend " + settings.backend);
+	    out.println(parser.getUsage());
+	    return 20;
+	}
+	if(options.get("--tier-threshold") != null) {
+	    try {
+		settings.tierThreshold = Integer.parseInt(options.get("--tier-threshold"));
+	    } catch(NumberFormatException ex) {
+		out.println("Invalid tier threshold " + options.get("--tier-threshold"));
+		return 20;
+	    }
+	}
+	settings.stats = switches.get("--stats");
+	if(options.get("--eval-budget") != null) {
+	    try {
+		settings.evalBudget = Long.parseLong(options.get("--eval-budget"));
+	    } catch(NumberFormatException ex) {
+		settings.evalBudget = -1;
+	    }
+	    if(settings.evalBudget < 0) {
+		out.println("Invalid evaluation budget " + options.get("--eval-budget"));
+		return 20;
+	    }
+	}
+	if(options.get("--stats-format") != null) {
+	    settings.statsFormat = options.get("--stats-format");
+	    if(!settings.statsFormat.equals("text") && !settings.statsFormat.equals("json")) {
+		out.println("Unknown stats format " + settings.statsFormat);
+		out.println(parser.getUsage());
+		return 20;
+	    }
+	}
+	if(options.get("--cell-bits") != null) {
+	    String bits = options.get("--cell-bits");
+	    if(!bits.equals("8") && !bits.equals("16") && !bits.equals("32")) {
+		out.println("Invalid cell width " + bits);
+		out.println(parser.getUsage());
+		return 20;
+	    }
+	    settings.cellBits = Integer.parseInt(bits);
+	}
+	int jobs = Runtime.getRuntime().availableProcessors();
+	if(options.get("--jobs") != null) {
+	    try {
+		jobs = Integer.parseInt(options.get("--jobs"));
+	    } catch(NumberFormatException ex) {
+		jobs = 0;
+	    }
+	    if(jobs <= 0) {
+		out.println("Invalid number of jobs " + options.get("--jobs"));
+		return 20;
+	    }
+	}
+
+	long cacheSize = CompileCache.DEFAULT_MAX_SIZE;
+	if(options.get("--cache-size") != null) {
+	    try {
+		cacheSize = Long.parseLong(options.get("--cache-size")) << 20;
+	    } catch(NumberFormatException ex) {
+		cacheSize = -1;
+	    }
+	    if(cacheSize < 0) {
+		out.println("Invalid cache size " + options.get("--cache-size"));
+		return 20;
+	    }
+	}
+	if(options.get("--profile-generate") != null) {
+	    // Profiles are made by the interpreter
+	    settings.profileGenerate = resolve(workingDirectory, options.get("--profile-generate"));
+	    settings.run = true;
+	}
+	if(options.get("--profile-use") != null) {
+	    try {
+		settings.profile = Profile.read(resolve(workingDirectory, options.get("--profile-use")));
+	    } catch(CompileException ex) {
+		out.println(ex.getMessage());
+		return 20;
+	    }
+	}
+	if(settings.stream && (!settings.backend.equals("c") || settings.run || options.get("--cache") != null
+			       || settings.profile != null)) {
+	    out.println("Only the c backend can stream, without --run, --cache and --profile-use");
+	    return 20;
+	}
+	if(options.get("--cc") != null && workingDirectory != null) {
+	    // Clients must not choose the programs the server starts
+	    out.println("A server only uses the C compiler it was started with ($CC)");
+	    return 20;
+	}
+	if(switches.get("--native")) {
+	    if(!settings.backend.equals("c") || settings.run || options.get("--cache") != null) {
+		out.println("Only the c backend can compile natively, without --run and --cache");
+		return 20;
+	    }
+	    settings.cc = options.get("--cc") != null ? options.get("--cc") : Toolchain.defaultCommand();
+	}
+	settings.out = out;
+	if(options.get("--cache") != null) {
+	    try {
+		settings.cache = new CompileCache(resolve(workingDirectory, options.get("--cache")), cacheSize);
+	    } catch(IOException ex) {
+		out.println("Error creating the cache " + options.get("--cache"));
+		return 20;
+	    }
 	}
 
-	// Sanitize input (replace newlines, and read each command into one String. Join the Strings and give
-	//  them to the Lexer).
 	if(files.size() == 0) {
+	    return 0;
+	}
+	if(workingDirectory != null && settings.runs(outputFile)) {
+	    out.println("A server cannot run programs, only compile them");
+	    return 20;
+	}
+	if(outputFile != null) {
+	    outputFile = resolve(workingDirectory, outputFile);
+	}
+	if(files.size() > 1) {
+	    if(settings.runs(outputFile)) {
+		out.println("Only a single file can be run");
+		return 20;
+	    }
+	    if(settings.profile != null) {
+		out.println("A profile only fits a single file");
+		return 20;
+	    }
+	    boolean succeeded = compileAll(files, outputFile, settings, jobs, out);
+	    if(settings.cache != null) {
+		out.println(settings.cache.stats());
+	    }
+	    if(!succeeded) {
+		return -1;
+	    }
+	    return 0;
+	}
+
+	if(outputFile == null && settings.backend.equals("c")) {
+	    outputFile = resolve(workingDirectory, settings.cc != null ? "out" : "out.c");
+	}
+	if(outputFile == null && settings.backend.equals("asm")) {
+	    outputFile = resolve(workingDirectory, "out.s");
+	}
+	Stats stats = new Stats(files.get(0));
+	try {
+	    compileFile(files.get(0), outputFile, settings, stats);
+	} catch(CompileException ex) {
+	    out.println(ex.getMessage());
+	    return -1;
+	}
+	if(settings.stats) {
+	    // Programs that ran printed to out themselves
+	    PrintStream report = settings.runs(outputFile) ? System.err : out;
+	    report.println(settings.report(stats));
+	}
+	if(settings.cache != null && !settings.runs(outputFile)) {
+	    out.println(settings.cache.stats());
+	}
+	return 0;
+    }
+
+    /**
+     * @return The path, relative to workingDirectory if it is not absolute
+     */
+    private static String resolve(File workingDirectory, String path) {
+	if(workingDirectory == null || new File(path).isAbsolute()) {
+	    return path;
+	}
+	return new File(workingDirectory, path).getPath();
+    }
+
+    /**
+     * @return The arguments without the given option and its value
+     */
+    private static String[] withoutOption(String[] args, String shortForm, String longForm) {
+	ArrayList<String> remaining = new ArrayList<String>();
+	for(int index = 0; index < args.length; index++) {
+	    if(args[index].equals(shortForm) || args[index].equals(longForm)) {
+		index++;
+		continue;
+	    }
+	    remaining.add(args[index]);
+	}
+	return remaining.toArray(new String[0]);
+    }
+
+    /**
+     * Compiles every file on its own, at most jobs at once. Each file is
+     * written next to it, or into outputDirectory if given, with the
+     * extension of the backend. A missing outputDirectory is created first.
+     * An error in one file does not stop the others.
+     *
+     * @return Whether all files compiled
+     */
+    private static boolean compileAll(ArrayList<String> files, String outputDirectory,
+				      Settings settings, int jobs, PrintStream out) {
+	if(outputDirectory != null) {
+	    File directory = new File(outputDirectory);
+	    if(!directory.mkdirs() && !directory.isDirectory()) {
+		out.println("Could not create the output directory " + outputDirectory);
+		return false;
+	    }
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, files.size()));
+	ArrayList<Future<Stats>> results = new ArrayList<Future<Stats>>();
+	for(String fileName : files) {
+	    String outputFile = outputFileOf(fileName, outputDirectory, settings);
+	    results.add(pool.submit(() -> {
+		Stats stats = new Stats(fileName);
+		compileFile(fileName, outputFile, settings, stats);
+		return stats;
+	    }));
+	}
+	pool.shutdown();
+
+	// Errors and stats are reported in the order of the files
+	boolean succeeded = true;
+	for(int index = 0; index < files.size(); index++) {
+	    try {
+		Stats stats = results.get(index).get();
+		if(settings.stats) {
+		    out.println(settings.report(stats));
+		}
+	    } catch(ExecutionException ex) {
+		Throwable cause = ex.getCause();
+		String message = cause instanceof CompileException ? cause.getMessage() : cause.toString();
+		out.println(files.get(index) + ": " + message);
+		succeeded = false;
+	    } catch(InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	}
+	return succeeded;
+    }
+
+    /**
+     * @return The file fileName compiles to, e.g. "dir/hello.c" for "hello.chris"
+     * or "dir/hello" for an executable
+     */
+    private static String outputFileOf(String fileName, String outputDirectory, Settings settings) {
+	File file = new File(fileName);
+	String name = file.getName();
+	int dot = name.lastIndexOf('.');
+	if(dot > 0) {
+	    name = name.substring(0, dot);
+	}
+	if(settings.cc != null) {
+	    // Files without an extension must not be overwritten
+	    name += dot > 0 ? "" : ".out";
+	} else {
+	    String backend = settings.backend;
+	    // A class file has to be named after its class
+	    name = backend.equals("c") ? name + ".c" : backend.equals("asm") ? name + ".s"
+		: BytecodeCompiler.classNameOf(name) + ".class";
+	}
+	File directory = outputDirectory != null ? new File(outputDirectory) : file.getParentFile();
+	return new File(directory, name).getPath();
+    }
+
+    /**
+     * Compiles a single file, or runs it. With a cache, programs that were
+     * compiled before are copied out of it instead.
+     *
+     * @param fileName The file to compile
+     * @param outputFile The file to write to. Only the jvm backend takes null, which runs the program.
+     * @param settings How to compile the file
+     * @param stats Where the phases are recorded
+     */
+    static void compileFile(String fileName, String outputFile,
+			    Settings settings, Stats stats) throws CompileException {
+	if(settings.cc == null) {
+	    compileFile(fileName, outputFile, settings, stats, null);
 	    return;
 	}
-	String fileName = files.get(0);
-	List<String> lines;
-	try{
-	    lines = Files.readAllLines(Paths.get(fileName),
-				       Charset.defaultCharset());
+	// Started first, so the C compiler starts up while the program is lexed and optimized
+	Toolchain toolchain = new Toolchain(settings.cc, outputFile);
+	boolean compiled = false;
+	try {
+	    compileFile(fileName, outputFile, settings, stats, toolchain);
+	    compiled = true;
+	} finally {
+	    if(!compiled) {
+		toolchain.abort();
+	    }
+	}
+	stats.begin();
+	String diagnostics = toolchain.finish();
+	stats.end("cc").bytes = new File(outputFile).length();
+	if(!diagnostics.isEmpty()) {
+	    settings.out.println(fileName + ": " + diagnostics);
+	}
+    }
+
+    /**
+     * @param toolchain The C compiler the code is piped into, or null to write outputFile
+     */
+    private static void compileFile(String fileName, String outputFile, Settings settings,
+				    Stats stats, Toolchain toolchain) throws CompileException {
+	if(settings.stream) {
+	    stats.begin();
+	    long commands = 0;
+	    if(toolchain == null) {
+		commands = StreamCompiler.compile(fileName, outputFile, settings.mapped, settings.cellBits);
+	    } else {
+		try {
+		    commands = StreamCompiler.compile(fileName, toolchain.writer(), settings.mapped, settings.cellBits);
+		} catch(IOException ex) {
+		    toolchain.failed(ex);
+		}
+	    }
+	    Stats.Phase phase = stats.end("stream");
+	    phase.tokens = commands;
+	    if(toolchain == null) {
+		phase.bytes = new File(outputFile).length();
+	    }
+	    return;
+	}
+	boolean cached = settings.cache != null && !settings.runs(outputFile);
+	if(!cached && !settings.stats) {
+	    // Stream the file straight into the lexer. Line terminators are skipped there.
+	    TokenStream tokens;
+	    stats.begin();
+	    try {
+		tokens = Lexer.lexFile(fileName);
+	    } catch(IOException ex) {
+		throw new CompileException("Error reading file " + fileName, ex);
+	    }
+	    stats.end("lex").tokens = tokens.commands();
+	    compileTokens(fileName, tokens, outputFile, settings, stats, toolchain);
+	    return;
+	}
+
+	// The whole source is needed for its hash anyway, and the stats
+	// can only tell reading and lexing apart if they do not overlap
+	byte[] source;
+	stats.begin();
+	try {
+	    source = Files.readAllBytes(Paths.get(fileName));
 	} catch(IOException ex) {
-	    System.out.println("Error reading file " + fileName);
-	    System.exit(-1);
+	    throw new CompileException("Error reading file " + fileName, ex);
+	}
+	stats.end("read").bytes = source.length;
+	String key = null;
+	if(cached) {
+	    stats.begin();
+	    key = CompileCache.key(source, settings.describe(outputFile));
+	    boolean hit = settings.cache.fetch(key, outputFile);
+	    stats.end("cache");
+	    if(hit) {
+		return;
+	    }
+	}
+	stats.begin();
+	TokenStream tokens = Lexer.lex(source);
+	stats.end("lex").tokens = tokens.commands();
+	compileTokens(fileName, tokens, outputFile, settings, stats, toolchain);
+	if(cached) {
+	    settings.cache.store(key, outputFile, settings.out);
+	}
+    }
+
+    private static void compileTokens(String fileName, TokenStream tokens, String outputFile,
+				      Settings settings, Stats stats, Toolchain toolchain) throws CompileException {
+	stats.begin();
+	ArrayList<Ir.Node> program = Ir.build(tokens);
+	stats.end("build").tokens = tokens.commands();
+	stats.begin();
+	program = Optimizer.recognizeIdioms(program);
+	program = Optimizer.addressOffsets(program);
+	program = Optimizer.propagateValues(program);
+	program = Optimizer.removeDeadStores(program);
+	stats.end("optimize");
+	Profile profile = settings.profile;
+	if(profile != null && profile.loops() != Profile.countLoops(program)) {
+	    throw new CompileException("The profile does not fit " + fileName + ", it has " + profile.loops()
+				       + " loops instead of " + Profile.countLoops(program));
+	}
+	// Only the c backend can start with the state of the evaluated part
+	PartialEvaluator.Result state = null;
+	if(settings.backend.equals("c") && !settings.run && settings.evalBudget > 0) {
+	    stats.begin();
+	    state = PartialEvaluator.evaluate(program, settings.cellBits, settings.evalBudget);
+	    program = state.residual;
+	    stats.end("evaluate").bytes = state.output.length;
+	    // The residual keeps the last loops only
+	    if(profile != null) {
+		profile = profile.tail(Profile.countLoops(program));
+	    }
+	}
+	stats.begin();
+	TapeBounds bounds = TapeBounds.analyze(program);
+	stats.end("bounds");
+
+	stats.begin();
+	emit(fileName, program, bounds, outputFile, settings, state, profile, toolchain);
+	if(settings.runs(outputFile)) {
+	    stats.end("run");
+	} else if(toolchain != null) {
+	    stats.end("emit");
+	} else {
+	    stats.end("emit").bytes = new File(outputFile).length();
+	}
+    }
+
+    private static void emit(String fileName, ArrayList<Ir.Node> program, TapeBounds bounds, String outputFile,
+			     Settings settings, PartialEvaluator.Result state, Profile profile,
+			     Toolchain toolchain) throws CompileException {
+	int cellBits = settings.cellBits;
+	if(settings.run) {
+	    Interpreter interpreter = new Interpreter(program, settings.tierThreshold, cellBits);
+	    try {
+		if(settings.profileGenerate != null) {
+		    interpreter.profile(System.in, System.out).write(settings.profileGenerate);
+		} else {
+		    if(profile != null) {
+			interpreter.useProfile(profile);
+		    }
+		    interpreter.run(System.in, System.out);
+		}
+	    } catch(IOException ex) {
+		throw new CompileException("Error running " + fileName + ": " + ex.getMessage(), ex);
+	    }
+	    return;
+	}
+	if(settings.backend.equals("jvm")) {
+	    try {
+		if(outputFile == null) {
+		    BytecodeCompiler.run(program, bounds, cellBits, System.in, System.out);
+		} else {
+		    BytecodeCompiler.write(program, outputFile, bounds, cellBits);
+		}
+	    } catch(IOException ex) {
+		throw new CompileException("Error running " + fileName + ": " + ex.getMessage(), ex);
+	    }
+	    return;
+	}
+	if(settings.backend.equals("asm")) {
+	    AsmCompiler.compile(program, outputFile, bounds, cellBits, profile);
 	    return;
 	}
-	StringBuilder sb = new StringBuilder();
-	for(String line : lines) {
-	    sb.append(line);
-	}
-	String[] commands = sb.toString().split("");
-	// TODO: populate arraylist
-        // First element in commands is currently set empty, causing an error
-        String[] fixedCommands = new String[commands.length -1];
-        for(int i = 1;i < commands;i++){
-            fixedCommands[i -1] = commands[i];
-        }
-        ArrayList<Lexer.Token> tokens = Lexer.lex(new ArrayList<String>(Arrays.asList(commands)));
-
-        int moves = 0;
-        for(Lexer.Token tk : tokens) {
-            if(tk.type == Lexer.TokenType.LEFT || tk.type == Lexer.TokenType.RIGHT) {
-                moves++;
-            }
-        }
-
-        Compiler.compile(tokens, outputFile, moves);
+	if(toolchain != null) {
+	    try {
+		Compiler.compile(program, toolchain.writer(), bounds, settings.mapped, cellBits, state, profile);
+	    } catch(IOException ex) {
+		toolchain.failed(ex);
+	    }
+	    return;
+	}
+	Compiler.compile(program, outputFile, bounds, settings.mapped, cellBits, state, profile);
+    }
+
+    /**
+     * The settings from the commandline, that apply to every file.
+     */
+    static class Settings {
+	String backend = "c";
+	boolean run = false;
+	boolean mapped = false;
+	boolean stream = false;
+	long evalBudget = PartialEvaluator.DEFAULT_STEP_BUDGET;
+	int cellBits = 8;
+	int tierThreshold = Interpreter.DEFAULT_TIER_THRESHOLD;
+	CompileCache cache = null;
+	boolean stats = false;
+	String statsFormat = "text";
+	// The file a profile is written to, or null
+	String profileGenerate = null;
+	Profile profile = null;
+	// The C compiler command of --native, or null to write C code
+	String cc = null;
+	// Where the diagnostics of the C compiler are printed
+	PrintStream out = System.out;
+
+	/**
+	 * @return The stats in the format from the commandline
+	 */
+	String report(Stats stats) {
+	    return statsFormat.equals("json") ? stats.toJson() : stats.toText();
+	}
+
+	/**
+	 * @return Everything besides the source that the compiled program depends on
+	 */
+	String describe(String outputFile) {
+	    String description = "backend=" + backend + " mapped=" + mapped + " cellBits=" + cellBits
+		+ " evalBudget=" + evalBudget;
+	    if(profile != null) {
+		description += " profile=" + profile.describe();
+	    }
+	    // Generated classes are named after their file
+	    if(backend.equals("jvm")) {
+		description += " output=" + new File(outputFile).getName();
+	    }
+	    return description;
+	}
+
+	/**
+	 * @return Whether the program is run instead of being written to outputFile
+	 */
+	boolean runs(String outputFile) {
+	    return run || backend.equals("jvm") && outputFile == null;
+	}
     }
 
         /**
@@ -0,0 +1,250 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.DirectoryStream;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * CompileCache keeps compiled programs in a directory, named by the
+ * SHA-256 of their source, the settings they were compiled with and the
+ * class files of the compiler, which include the code generators. A program that was compiled before is
+ * copied out of the cache instead of being lexed and compiled again.
+ *
+ * Entries are written to a temporary file and then renamed, so no reader
+ * ever sees half an entry, even with several compilers sharing the cache.
+ * Once the cache grows beyond its size, the least recently used entries
+ * are removed.
+ */
+public class CompileCache {
+    /**
+     * The SHA-256 of the class files of the compiler. Any change to a
+     * backend changes it, so no stale programs are served.
+     */
+    public static final String GENERATOR_VERSION = generatorVersion();
+    public static final long DEFAULT_MAX_SIZE = 256L << 20;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private Path directory;
+    private long maxSize;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param directory The directory of the cache, it is created if needed
+     * @param maxSize The number of bytes the entries may take up
+     */
+    public CompileCache(String directory, long maxSize) throws IOException {
+	this.directory = Files.createDirectories(Paths.get(directory));
+	this.maxSize = maxSize;
+    }
+
+    /**
+     * Hashes the jar or the directory of classes the compiler was loaded
+     * from. If they cannot be read, every run gets a version of its own and
+     * the cache only serves the programs it compiled itself.
+     */
+    private static String generatorVersion() {
+	try {
+	    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	    CodeSource source = CompileCache.class.getProtectionDomain().getCodeSource();
+	    Path location = Paths.get(source.getLocation().toURI());
+	    if(Files.isDirectory(location)) {
+		ArrayList<Path> classes = new ArrayList<Path>();
+		try(Stream<Path> files = Files.walk(location)) {
+		    files.filter(file -> file.toString().endsWith(".class")).forEach(classes::add);
+		}
+		classes.sort(Comparator.naturalOrder());
+		for(Path file : classes) {
+		    digest.update((location.relativize(file) + "\n").getBytes(StandardCharsets.UTF_8));
+		    digest.update(Files.readAllBytes(file));
+		}
+	    } else {
+		digest.update(Files.readAllBytes(location));
+	    }
+	    return hex(digest.digest());
+	} catch(IOException | URISyntaxException | NoSuchAlgorithmException | RuntimeException ex) {
+	    return UUID.randomUUID().toString();
+	}
+    }
+
+    private static String hex(byte[] bytes) {
+	StringBuilder builder = new StringBuilder();
+	for(byte part : bytes) {
+	    builder.append(String.format("%02x", part & 0xFF));
+	}
+	return builder.toString();
+    }
+
+    /**
+     * @param source The source code of the program
+     * @param settings Everything else the output depends on, e.g. the backend
+     * @return The key of the compiled program
+     */
+    public static String key(byte[] source, String settings) {
+	MessageDigest digest;
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	} catch(NoSuchAlgorithmException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	digest.update((GENERATOR_VERSION + "\n" + settings + "\n").getBytes(StandardCharsets.UTF_8));
+	return hex(digest.digest(source));
+    }
+
+    /**
+     * Copies the program with the given key to outputFile, if it is cached.
+     *
+     * @return Whether the program was cached
+     */
+    public boolean fetch(String key, String outputFile) {
+	Path entry = directory.resolve(key);
+	try {
+	    copyAtomically(entry, Paths.get(outputFile));
+	    // Mark the entry as recently used
+	    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+	} catch(IOException ex) {
+	    // Missing or just evicted entries are misses
+	    misses.incrementAndGet();
+	    return false;
+	}
+	hits.incrementAndGet();
+	return true;
+    }
+
+    /**
+     * Stores the compiled program in outputFile under the given key and
+     * evicts old entries, if the cache became too big. A program that
+     * cannot be cached is just compiled again next time.
+     *
+     * @param out The stream a failure is reported to
+     */
+    public void store(String key, String outputFile, PrintStream out) {
+	try {
+	    copyAtomically(Paths.get(outputFile), directory.resolve(key));
+	    evict();
+	} catch(IOException ex) {
+	    out.println("Could not cache " + outputFile + ": " + ex.getMessage());
+	}
+    }
+
+    /**
+     * @return A line like "Cache: 3 hits, 1 misses, 0 evictions"
+     */
+    public String stats() {
+	return "Cache: " + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get() + " evictions";
+    }
+
+    /**
+     * Copies from to a temporary file next to to and renames it to to.
+     */
+    private static void copyAtomically(Path from, Path to) throws IOException {
+	Path parent = to.toAbsolutePath().getParent();
+	Path temporary = Files.createTempFile(parent, to.getFileName().toString(), TEMPORARY_SUFFIX);
+	try {
+	    Files.copy(from, temporary, StandardCopyOption.REPLACE_EXISTING);
+	    Files.move(temporary, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	} finally {
+	    Files.deleteIfExists(temporary);
+	}
+    }
+
+    /**
+     * Removes the least recently used entries, until the cache fits into its size.
+     */
+    private synchronized void evict() throws IOException {
+	ArrayList<Path> entries = new ArrayList<Path>();
+	long size = 0;
+	try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+	    for(Path entry : stream) {
+		if(entry.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+		    continue;
+		}
+		entries.add(entry);
+		size += Files.size(entry);
+	    }
+	}
+	if(size <= maxSize) {
+	    return;
+	}
+	entries.sort(Comparator.comparing(CompileCache::lastUse));
+	for(Path entry : entries) {
+	    if(size <= maxSize) {
+		break;
+	    }
+	    long entrySize = Files.size(entry);
+	    if(Files.deleteIfExists(entry)) {
+		size -= entrySize;
+		evictions.incrementAndGet();
+	    }
+	}
+    }
+
+    private static FileTime lastUse(Path entry) {
+	try {
+	    return Files.getLastModifiedTime(entry);
+	} catch(IOException ex) {
+	    return FileTime.fromMillis(0);
+	}
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in CompileCache.java");
+	testCache();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testCache() {
+	System.out.println("Starting to test the cache");
+	try {
+	    Path root = Files.createTempDirectory("chris-cache-test");
+	    CompileCache cache = new CompileCache(root.resolve("cache").toString(), 10);
+	    String key = key("AO".getBytes(), "c");
+	    assert key.length() == 64;
+	    assert GENERATOR_VERSION.length() == 64 : GENERATOR_VERSION;
+	    assert !key.equals(key("AO".getBytes(), "asm"));
+	    assert !key.equals(key("AAO".getBytes(), "c"));
+
+	    String output = root.resolve("out.c").toString();
+	    assert !cache.fetch(key, output);
+	    Files.write(Paths.get(output), "12345678".getBytes());
+	    cache.store(key, output, System.out);
+	    Files.delete(Paths.get(output));
+	    assert cache.fetch(key, output);
+	    assert new String(Files.readAllBytes(Paths.get(output))).equals("12345678");
+
+	    // Both entries do not fit, so the one used last long ago is evicted
+	    Files.setLastModifiedTime(root.resolve("cache").resolve(key), FileTime.fromMillis(0));
+	    String other = key("OO".getBytes(), "c");
+	    cache.store(other, output, System.out);
+	    assert !cache.fetch(key, output);
+	    assert cache.fetch(other, output);
+	    assert cache.stats().equals("Cache: 2 hits, 2 misses, 1 evictions") : cache.stats();
+
+	    // Failures go to the stream of the caller
+	    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+	    cache.store(key, root.resolve("missing.c").toString(), new PrintStream(messages, true));
+	    assert messages.toString().startsWith("Could not cache ") : messages;
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	System.out.println("Done.");
+    }
+}
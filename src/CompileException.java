@@ -0,0 +1,18 @@
+package src;
+
+/**
+ * CompileException reports an error in a program or in reading or writing
+ * its files. Its message is meant for the user, e.g.
+ * "Unknown command 'x' at offset 42".
+ */
+public class CompileException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CompileException(String message) {
+	super(message);
+    }
+
+    public CompileException(String message, Throwable cause) {
+	super(message, cause);
+    }
+}
@@ -0,0 +1,227 @@
+package src;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PrintStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import src.Chris;
+
+/**
+ * CompileServer compiles programs for clients on the same machine. The
+ * JVM is started once and the lexer and backends stay JIT-compiled, so a
+ * request only pays for compiling its program. Requests are served
+ * concurrently.
+ *
+ * The server listens on a Unix domain socket. Its directory has to be
+ * accessible by the owner of the server only, as every client can let the
+ * server write files wherever the owner can.
+ *
+ * A request is the working directory of the client and its commandline
+ * arguments, the response the exit status and the messages of Chris:
+ *     request:  UTF working directory, int count, count * UTF argument
+ *     response: int status, int length, length bytes of UTF-8 messages
+ */
+public class CompileServer {
+    // Requests with more arguments are rejected
+    private static final int MAX_ARGUMENTS = 1 << 16;
+
+    // The permissions of the directory of the socket, and of the socket
+    private static final Set<PosixFilePermission> PRIVATE_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> PRIVATE_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private Path path;
+    private ServerSocketChannel socket;
+    private ExecutorService pool;
+
+    /**
+     * Creates the directory of the socket, unless it exists. An existing
+     * directory must not be accessible by anybody else.
+     *
+     * @param socketFile The socket to listen on
+     */
+    public CompileServer(String socketFile) throws IOException {
+	path = Paths.get(socketFile).toAbsolutePath();
+	Path directory = path.getParent();
+	if(!Files.isDirectory(directory)) {
+	    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PRIVATE_DIRECTORY));
+	}
+	Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+	if(!PRIVATE_DIRECTORY.containsAll(permissions)
+	   || !Files.getOwner(directory).getName().equals(System.getProperty("user.name"))) {
+	    throw new IOException("Only its owner may access " + directory);
+	}
+	// A socket left behind by a server that was killed
+	Files.deleteIfExists(path);
+	socket = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+	socket.bind(UnixDomainSocketAddress.of(path));
+	Files.setPosixFilePermissions(path, PRIVATE_FILE);
+	pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return The socket the server listens on
+     */
+    public Path path() {
+	return path;
+    }
+
+    /**
+     * Serves requests until the server is closed.
+     */
+    public void serve() throws IOException {
+	try {
+	    while(true) {
+		SocketChannel client = socket.accept();
+		pool.execute(() -> handle(client));
+	    }
+	} catch(ClosedChannelException ex) {
+	    // The server was closed
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    public void close() throws IOException {
+	socket.close();
+	Files.deleteIfExists(path);
+    }
+
+    private void handle(SocketChannel client) {
+	try(SocketChannel connection = client) {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+	    File workingDirectory = new File(in.readUTF());
+	    int count = in.readInt();
+	    if(!workingDirectory.isAbsolute() || count < 0 || count > MAX_ARGUMENTS) {
+		throw new IOException("Invalid request");
+	    }
+	    String[] args = new String[count];
+	    for(int index = 0; index < count; index++) {
+		args[index] = in.readUTF();
+	    }
+
+	    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+	    PrintStream out = new PrintStream(messages, true, "UTF-8");
+	    int status;
+	    try {
+		status = Chris.execute(args, workingDirectory, out);
+	    } catch(RuntimeException ex) {
+		out.println(ex);
+		status = -1;
+	    }
+	    out.flush();
+
+	    DataOutputStream response = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+	    byte[] bytes = messages.toByteArray();
+	    response.writeInt(status);
+	    response.writeInt(bytes.length);
+	    response.write(bytes);
+	    response.flush();
+	} catch(IOException ex) {
+	    System.out.println("Error serving a request: " + ex.getMessage());
+	}
+    }
+
+    /**
+     * Lets the server on the given socket compile, as if Chris was run with args.
+     *
+     * @param workingDirectory The directory relative paths in args start in
+     * @param out The stream the messages of the server are printed to
+     * @return The exit status of the request
+     */
+    public static int request(String socketFile, String[] args, File workingDirectory, PrintStream out) throws IOException {
+	try(SocketChannel socket = SocketChannel.open(UnixDomainSocketAddress.of(socketFile))) {
+	    DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket)));
+	    request.writeUTF(workingDirectory.getAbsolutePath());
+	    request.writeInt(args.length);
+	    for(String arg : args) {
+		request.writeUTF(arg);
+	    }
+	    request.flush();
+
+	    DataInputStream response = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket)));
+	    int status = response.readInt();
+	    byte[] messages = new byte[response.readInt()];
+	    response.readFully(messages);
+	    out.print(new String(messages, StandardCharsets.UTF_8));
+	    out.flush();
+	    return status;
+	}
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in CompileServer.java");
+	testRequest();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testRequest() {
+	System.out.println("Starting to test requests");
+	try {
+	    File directory = Files.createTempDirectory("chris-server-test").toFile();
+	    Files.write(new File(directory, "a.chris").toPath(), "AAAAO".getBytes());
+	    Files.write(new File(directory, "b.chris").toPath(), "AAxO".getBytes());
+
+	    String socketFile = new File(directory, "server/socket").getPath();
+	    CompileServer server = new CompileServer(socketFile);
+	    assert Files.getPosixFilePermissions(server.path().getParent()).equals(PRIVATE_DIRECTORY);
+	    Thread thread = new Thread(() -> {
+		try {
+		    server.serve();
+		} catch(IOException ex) {
+		    assert false : ex;
+		}
+	    });
+	    thread.start();
+
+	    // Paths are relative to the directory of the client
+	    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+	    PrintStream out = new PrintStream(messages, true);
+	    assert request(socketFile, new String[] {"-o", "a.c", "a.chris"}, directory, out) == 0;
+	    assert new File(directory, "a.c").exists();
+	    assert request(socketFile, new String[] {"-b", "asm", "b.chris", "a.chris"}, directory, out) == -1;
+	    assert new File(directory, "a.s").exists();
+	    assert messages.toString().contains("b.chris: Unknown command 'x' at offset 2") : messages;
+	    assert request(socketFile, new String[] {"-r", "a.chris"}, directory, out) == 20;
+	    assert request(socketFile, new String[] {"-n", "-x", "sh -c", "a.chris"}, directory, out) == 20;
+	    assert messages.toString().contains("A server only uses the C compiler it was started with") : messages;
+
+	    server.close();
+	    thread.join();
+	    assert !new File(socketFile).exists();
+
+	    // Nobody else may be able to connect
+	    File shared = new File(directory, "shared");
+	    Files.createDirectory(shared.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwxr-xr-x")));
+	    try {
+		new CompileServer(new File(shared, "socket").getPath());
+		assert false : "A server listened in a shared directory";
+	    } catch(IOException ex) {
+		assert ex.getMessage().startsWith("Only its owner may access") : ex;
+	    }
+	} catch(IOException | InterruptedException ex) {
+	    assert false : ex;
+	}
+	System.out.println("Done.");
+    }
+}
@@ -5,48 +5,722 @@ import java.io.Writer;
 import java.io.BufferedWriter;
 import java.io.OutputStreamWriter;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
-import src.Lexer;
+import src.Ir;
+import src.TapeBounds;
+import src.CompileException;
+import src.Optimizer;
+import src.PartialEvaluator;
+import src.Toolchain;
 
 public class Compiler {
+    // The size of the output buffer of the generated programs
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    // The first size of a growing tape
+    private static final int INITIAL_TAPE_SIZE = 1 << 16;
+    // How often hot loops of a profile are unrolled
+    private static final int HOT_UNROLL = 4;
+
+    private enum Tape {
+	// NONE is for programs without nodes, which only write their output
+	STATIC, GROWING, MAPPED, NONE
+    }
+
     private Compiler() {
     }
 
-    public static void compile(ArrayList<Lexer.Token> tokens,
+    public static void compile(ArrayList<Ir.Node> program,
+			       String outputFile,
+			       TapeBounds bounds,
+			       boolean mapped,
+			       int cellBits) {
+	compile(program, outputFile, bounds, mapped, cellBits, null);
+    }
+
+    public static void compile(ArrayList<Ir.Node> program,
 			       String outputFile,
-			       int memoryCapacity) {
+			       TapeBounds bounds,
+			       boolean mapped,
+			       int cellBits,
+			       PartialEvaluator.Result state) {
+	compile(program, outputFile, bounds, mapped, cellBits, state, null);
+    }
+
+    public static void compile(ArrayList<Ir.Node> program,
+			       String outputFile,
+			       TapeBounds bounds,
+			       boolean mapped,
+			       int cellBits,
+			       PartialEvaluator.Result state,
+			       Profile profile) {
 
 	try(BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "utf-8"))) {
-	    memoryCapacity++;
+	    compile(program, writer, bounds, mapped, cellBits, state, profile);
+	} catch(IOException ex) {
+	    throw new CompileException("Error writing to file " + outputFile, ex);
+        }
+    }
+
+    /**
+     * Writes the C translation of the program to the given Writer.
+     * Programs with known bounds get a static tape of exactly the cells they
+     * can reach. All others get a tape on the heap that grows as the pointer
+     * moves or, if mapped, a huge tape whose pages are committed on first use.
+     * Mapped tapes are surrounded by guard pages, so they need no bounds checks
+     * except for steps too large for the guards.
+     * Cells are unsigned integers of cellBits, which wrap around by themselves.
+     *
+     * @param program The program in its intermediate representation
+     * @param writer The Writer to write the C code to
+     * @param bounds The cells the program can reach
+     * @param mapped Whether a tape of unknown size is mapped instead of grown
+     * @param cellBits The width of a cell: 8, 16 or 32
+     */
+    public static void compile(ArrayList<Ir.Node> program,
+			       Writer writer,
+			       TapeBounds bounds,
+			       boolean mapped,
+			       int cellBits) throws IOException {
+	compile(program, writer, bounds, mapped, cellBits, null);
+    }
+
+    /**
+     * Like compile, but the program starts with the output and the tape
+     * that the evaluated start of it left behind. The output is written
+     * at once, the cells are initialized data.
+     *
+     * @param program The residual program
+     * @param state The partially evaluated program, or null
+     */
+    public static void compile(ArrayList<Ir.Node> program,
+			       Writer writer,
+			       TapeBounds bounds,
+			       boolean mapped,
+			       int cellBits,
+			       PartialEvaluator.Result state) throws IOException {
+	compile(program, writer, bounds, mapped, cellBits, state, null);
+    }
+
+    /**
+     * Like compile, but the loops are written after a profile of the
+     * program: hot loops are unrolled and cold ones are expected not to
+     * run, so gcc moves them out of the way of the others.
+     *
+     * @param profile A profile of the program's loops, or null
+     */
+    public static void compile(ArrayList<Ir.Node> program,
+			       Writer writer,
+			       TapeBounds bounds,
+			       boolean mapped,
+			       int cellBits,
+			       PartialEvaluator.Result state,
+			       Profile profile) throws IOException {
+	Emitter emitter = new Emitter(writer, bounds, mapped, cellBits, state, profile);
+	if(program.isEmpty()) {
+	    emitter.tape = Tape.NONE;
+	}
+	emitter.begin();
+	for(Ir.Node node : program) {
+	    emitter.emit(node);
+	}
+	emitter.end();
+    }
+
+    /**
+     * Emitter writes the C translation a node at a time, so a program can
+     * be translated while it is still being read.
+     */
+    static class Emitter {
+	private Writer writer;
+	private TapeBounds bounds;
+	private Tape tape;
+	private boolean checked;
+	private int cellBits;
+	private int depth;
+	private byte[] output;
+	private int[] cells;
+	private Profile profile;
+	// The number of loops started so far
+	private int loops;
+	// The furthest the pointer moves at once without a check
+	private long guardedStep;
+
+	/**
+	 * @param bounds The cells the program can reach. Unless they are
+	 * known, the offsets of the nodes must stay within them.
+	 */
+	Emitter(Writer writer, TapeBounds bounds, boolean mapped, int cellBits) {
+	    this(writer, bounds, mapped, cellBits, null);
+	}
+
+	/**
+	 * @param state The output and tape the program starts with, or null
+	 */
+	Emitter(Writer writer, TapeBounds bounds, boolean mapped, int cellBits, PartialEvaluator.Result state) {
+	    this(writer, bounds, mapped, cellBits, state, null);
+	}
+
+	/**
+	 * @param profile A profile of the program's loops, or null
+	 */
+	Emitter(Writer writer, TapeBounds bounds, boolean mapped, int cellBits,
+		PartialEvaluator.Result state, Profile profile) {
+	    this.writer = writer;
+	    this.profile = profile;
+	    this.output = state == null ? new byte[0] : state.output;
+	    this.cells = state == null ? new int[0] : state.cells;
+	    this.bounds = bounds;
+	    this.tape = bounds.known ? Tape.STATIC : mapped ? Tape.MAPPED : Tape.GROWING;
+	    this.checked = tape == Tape.GROWING;
+	    this.guardedStep = tape == Tape.MAPPED ? bounds.guardedStep() : Long.MAX_VALUE;
+	    this.cellBits = cellBits;
+	    this.depth = 1;
+	}
+
+	/**
+	 * Writes everything before the first node.
+	 */
+	void begin() throws IOException {
+	    writer.write("#define _GNU_SOURCE\n");
+	    writer.write("#include <stdint.h>\n");
 	    writer.write("#include <stdio.h>\n");
-	    writer.write("#include <stdlib.h>\n\n");
+	    writer.write("#include <stdlib.h>\n");
+	    writer.write("#include <string.h>\n");
+	    writer.write("#include <unistd.h>\n");
+	    if(tape == Tape.MAPPED) {
+		writer.write("#include <signal.h>\n");
+		writer.write("#include <sys/mman.h>\n");
+	    }
+	    writer.write("\n");
+	    writer.write("typedef uint" + cellBits + "_t cell_t;\n\n");
+	    writeIo(writer);
+	    if(output.length > 0) {
+		writer.write("static const char prefix[] = ");
+		writeString(writer, output);
+		writer.write(";\n\n");
+	    }
+	    if(tape == Tape.GROWING) {
+		writeGrowingTape(writer, bounds, cellBits);
+	    } else if(tape == Tape.MAPPED) {
+		writeMappedTape(writer, bounds, cellBits);
+	    } else if(tape == Tape.STATIC) {
+		writeStaticTape();
+	    }
+	    boolean onHeap = tape == Tape.GROWING || tape == Tape.MAPPED;
+	    if(onHeap && cells.length > 0) {
+		writer.write("static const cell_t initial[] = {");
+		for(int cell = 0; cell < cells.length; cell++) {
+		    writer.write((cell % 16 == 0 ? "\n\t" : " ") + cells[cell] + ",");
+		}
+		writer.write("\n};\n\n");
+	    }
 	    writer.write("int main(int argc, char** argv) {\n");
-	    writer.write("\tchar memory[" + memoryCapacity + "] = \"\";\n");
-	    writer.write("\tint pointer = 0;\n");
-
-	    // Write the program
-	    for(Lexer.Token token: tokens) {
-		if(token.type == Lexer.TokenType.RIGHT) {
-		    writer.write("\t++pointer;\n");
-		} else if(token.type == Lexer.TokenType.OUTPUT) {
-		    writer.write("\tprintf(\"%c\", memory[pointer]);\n");
-		} else if(token.type == Lexer.TokenType.INCREASE) {
-		    writer.write("\t++memory[pointer];\n");
-		} else if(token.type == Lexer.TokenType.DECREASE) {
-		    writer.write("\t--memory[pointer];\n");
-		} else if(token.type == Lexer.TokenType.LOOPSTART) {
-                    writer.write("\twhile(memory[pointer]){\n");
-                } else if(token.type == Lexer.TokenType.LOOPSTOP) {
-                    writer.write("\t}\n");
-                }
-
-                writer.write("\treturn 0;\n");
-                writer.write("}");
-                writer.close();
-            } catch(IOException ex) {
-                System.out.println("Error writing to file " + outputFile);
-                System.exit(-1);
-            }
-        }
+	    writer.write("\tline_buffered = isatty(1);\n");
+	    writer.write("\tatexit(flush);\n");
+	    if(output.length > 0) {
+		writer.write("\twrite_all(prefix, sizeof(prefix) - 1);\n");
+	    }
+	    if(tape == Tape.GROWING) {
+		writer.write("\tcapacity = " + INITIAL_TAPE_SIZE + ";\n");
+		writer.write("\tmemory = calloc(capacity, sizeof(cell_t));\n");
+		writer.write("\tif(!memory) fail(\"Out of memory\");\n");
+		writer.write("\tlong pointer = " + -bounds.minOffset + ";\n");
+		writer.write("\tcheck(pointer);\n");
+		if(cells.length > 0) {
+		    writer.write("\tcheck(pointer + " + (cells.length - 1) + ");\n");
+		}
+	    } else if(tape == Tape.MAPPED) {
+		writer.write("\tmap_tape();\n");
+		writer.write("\tlong pointer = " + -bounds.minOffset + ";\n");
+	    } else if(tape == Tape.STATIC) {
+		writer.write("\tlong pointer = " + bounds.origin() + ";\n");
+	    }
+	    if(onHeap && cells.length > 0) {
+		writer.write("\tmemcpy(memory + pointer, initial, sizeof(initial));\n");
+	    }
+	}
+
+	/**
+	 * Writes the static tape. Of the initial cells, only those the
+	 * program can reach are initialized.
+	 */
+	private void writeStaticTape() throws IOException {
+	    writer.write("static cell_t memory[" + bounds.size() + "]");
+	    long first = Math.max(bounds.min, 0);
+	    long last = Math.min(bounds.max, cells.length - 1);
+	    int initialized = 0;
+	    for(long cell = first; cell <= last; cell++) {
+		if(cells[(int)cell] == 0) {
+		    continue;
+		}
+		writer.write((initialized == 0 ? " = {" : ",") + (initialized % 8 == 0 ? "\n\t" : " "));
+		writer.write("[" + (cell + bounds.origin()) + "] = " + cells[(int)cell]);
+		initialized++;
+	    }
+	    writer.write(initialized > 0 ? "\n};\n\n" : ";\n\n");
+	}
+
+	/**
+	 * Writes the statements of a single node.
+	 */
+	void emit(Ir.Node node) throws IOException {
+	    if(node.op == Ir.Op.LOOPSTOP) {
+		depth--;
+	    }
+	    indent(writer, depth);
+	    if(node.op == Ir.Op.ADD) {
+		writer.write(cell(node.offset) + " " + signed(node.value) + ";\n");
+	    } else if(node.op == Ir.Op.MOVE) {
+		writer.write("pointer " + signed(node.value) + ";\n");
+		if(checked || Math.abs((long)node.value) > guardedStep) {
+		    indent(writer, depth);
+		    writer.write("check(pointer);\n");
+		}
+	    } else if(node.op == Ir.Op.OUTPUT) {
+		writer.write(repeated(node.value, "put(" + cell(node.offset) + ");") + "\n");
+	    } else if(node.op == Ir.Op.INPUT) {
+		// Only the last of repeated inputs is kept
+		if(node.value > 1) {
+		    writer.write(repeated(node.value - 1, "get();") + "\n");
+		    indent(writer, depth);
+		}
+		writer.write(cell(node.offset) + " = get();\n");
+	    } else if(node.op == Ir.Op.LOOPSTART) {
+		if(profile != null && profile.hot(loops)) {
+		    writer.write("#pragma GCC unroll " + HOT_UNROLL + "\n");
+		    indent(writer, depth);
+		    writer.write("while(memory[pointer]){\n");
+		} else if(profile != null && profile.cold(loops)) {
+		    writer.write("while(__builtin_expect(memory[pointer] != 0, 0)){\n");
+		} else {
+		    writer.write("while(memory[pointer]){\n");
+		}
+		loops++;
+		depth++;
+	    } else if(node.op == Ir.Op.LOOPSTOP) {
+		writer.write("}\n");
+	    } else if(node.op == Ir.Op.SET) {
+		// Constants that do not fit the cell make gcc warn, even though they would wrap
+		writer.write(cell(node.offset) + " = " + (node.value & (1L << cellBits) - 1) + ";\n");
+	    } else if(node.op == Ir.Op.MULADD) {
+		writer.write(cell(node.offset) + " " + multiplied(node.value, node.source) + ";\n");
+	    } else if(node.op == Ir.Op.SCAN) {
+		writer.write(scan(node.value, tape, checked || Math.abs((long)node.value) > guardedStep, cellBits) + "\n");
+	    }
+	}
+
+	/**
+	 * Writes everything after the last node.
+	 */
+	void end() throws IOException {
+	    writer.write("\treturn 0;\n");
+	    writer.write("}");
+	}
+    }
+
+    /**
+     * @return The compound assignment that adds value, e.g. "+= 3" or "-= 2"
+     */
+    private static String signed(int value) {
+	return value < 0 ? "-= " + -(long)value : "+= " + value;
+    }
+
+    /**
+     * @return The cell at the given offset from the pointer, e.g. "memory[pointer+2]"
+     */
+    private static String cell(int offset) {
+	if(offset == 0) {
+	    return "memory[pointer]";
+	}
+	return "memory[pointer" + (offset < 0 ? "" : "+") + offset + "]";
+    }
+
+    /**
+     * @return The compound assignment that adds factor times the cell at source
+     */
+    private static String multiplied(int factor, int source) {
+	if(factor == 1 || factor == -1) {
+	    return (factor < 0 ? "-= " : "+= ") + cell(source);
+	}
+	return signed(factor) + " * " + cell(source);
+    }
+
+    /**
+     * Writes the growing tape and its functions. check makes sure that all
+     * cells the nodes address around the pointer exist.
+     */
+    private static void writeGrowingTape(Writer writer, TapeBounds bounds, int cellBits) throws IOException {
+	writer.write("static cell_t* memory;\n");
+	writer.write("static long capacity;\n\n");
+	writeFail(writer);
+	writer.write("static void grow(long pointer) {\n");
+	writer.write("\tif(pointer < " + -bounds.minOffset + ") fail(\"The pointer moved left of the first cell\");\n");
+	writer.write("\tlong size = capacity;\n");
+	writer.write("\twhile(pointer + " + bounds.maxOffset + " >= size) size *= 2;\n");
+	writer.write("\tmemory = realloc(memory, size * sizeof(cell_t));\n");
+	writer.write("\tif(!memory) fail(\"Out of memory\");\n");
+	writer.write("\tmemset(memory + capacity, 0, (size - capacity) * sizeof(cell_t));\n");
+	writer.write("\tcapacity = size;\n");
+	writer.write("}\n\n");
+	writer.write("static inline void check(long pointer) {\n");
+	writer.write("\tif(pointer < " + -bounds.minOffset + " || pointer + " + bounds.maxOffset + " >= capacity) grow(pointer);\n");
+	writer.write("}\n\n");
+	if(cellBits != 8) {
+	    return;
+	}
+	// Scans stop at the first new cell at the latest, as it is zero
+	writer.write("static inline long scan_right(long pointer) {\n");
+	writer.write("\tcell_t* zero = memchr(memory + pointer, 0, capacity - pointer);\n");
+	writer.write("\tpointer = zero ? zero - memory : capacity;\n");
+	writer.write("\tcheck(pointer);\n");
+	writer.write("\treturn pointer;\n");
+	writer.write("}\n\n");
+	writeScanLeft(writer, true);
+    }
+
+    /**
+     * Writes the mapped tape and map_tape, which reserves it. Any access to
+     * the guards on either side raises a SIGSEGV, which ends the program.
+     * Steps larger than TapeBounds.guardedStep call check, which faults when
+     * the pointer leaves the tape.
+     */
+    private static void writeMappedTape(Writer writer, TapeBounds bounds, int cellBits) throws IOException {
+	writer.write("#define TAPE_SIZE " + TapeBounds.MAPPED_TAPE_SIZE + "L\n");
+	writer.write("#define GUARD_SIZE " + bounds.guardSize(cellBits / 8) + "L\n\n");
+	writer.write("static cell_t* memory;\n\n");
+	writeFail(writer);
+	// flush only writes, so it may be called from the signal handler
+	writer.write("static void fault(int signal) {\n");
+	writer.write("\tstatic const char message[] = \"The pointer left the tape\\n\";\n");
+	writer.write("\tflush();\n");
+	writer.write("\twrite(2, message, sizeof(message) - 1);\n");
+	writer.write("\t_exit(1);\n");
+	writer.write("}\n\n");
+	writer.write("static inline void check(long pointer) {\n");
+	writer.write("\tif(pointer < " + -bounds.minOffset + " || pointer + " + bounds.maxOffset + " >= TAPE_SIZE) fault(SIGSEGV);\n");
+	writer.write("}\n\n");
+	writer.write("static void map_tape(void) {\n");
+	writer.write("\tchar* region = mmap(NULL, TAPE_SIZE * sizeof(cell_t) + 2 * GUARD_SIZE, PROT_READ | PROT_WRITE,\n");
+	writer.write("\t\tMAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0);\n");
+	writer.write("\tif(region == MAP_FAILED) fail(\"Out of memory\");\n");
+	writer.write("\tmemory = (cell_t*)(region + GUARD_SIZE);\n");
+	writer.write("\tif(mprotect(region, GUARD_SIZE, PROT_NONE) || mprotect(memory + TAPE_SIZE, GUARD_SIZE, PROT_NONE)) {\n");
+	writer.write("\t\tfail(\"Could not protect the tape\");\n");
+	writer.write("\t}\n");
+	writer.write("\tstruct sigaction action = {0};\n");
+	writer.write("\taction.sa_handler = fault;\n");
+	writer.write("\tsigaction(SIGSEGV, &action, NULL);\n");
+	writer.write("}\n\n");
+	if(cellBits == 8) {
+	    writeScanLeft(writer, false);
+	}
+    }
+
+    /**
+     * Writes the buffered input and output. put collects the output in a
+     * buffer that is flushed when full, at exit, before reading input and,
+     * on a terminal, after every line. get reads 0 at the end of the input.
+     */
+    private static void writeIo(Writer writer) throws IOException {
+	writer.write("static char output[" + OUTPUT_BUFFER_SIZE + "];\n");
+	writer.write("static size_t output_length;\n");
+	writer.write("static int line_buffered;\n\n");
+	writer.write("static void write_all(const char* data, size_t length) {\n");
+	writer.write("\twhile(length > 0) {\n");
+	writer.write("\t\tssize_t written = write(1, data, length);\n");
+	writer.write("\t\tif(written <= 0) break;\n");
+	writer.write("\t\tdata += written;\n");
+	writer.write("\t\tlength -= written;\n");
+	writer.write("\t}\n");
+	writer.write("}\n\n");
+	writer.write("static void flush(void) {\n");
+	writer.write("\twrite_all(output, output_length);\n");
+	writer.write("\toutput_length = 0;\n");
+	writer.write("}\n\n");
+	writer.write("static inline void put(char c) {\n");
+	writer.write("\toutput[output_length++] = c;\n");
+	writer.write("\tif(output_length == sizeof(output) || (line_buffered && c == '\\n')) flush();\n");
+	writer.write("}\n\n");
+	writer.write("static inline int get(void) {\n");
+	writer.write("\tif(output_length > 0) flush();\n");
+	writer.write("\tint c = getchar_unlocked();\n");
+	writer.write("\treturn c == EOF ? 0 : c;\n");
+	writer.write("}\n\n");
+    }
+
+    /**
+     * Writes the bytes as a C string literal, which is split after every
+     * line. Everything but printable ASCII is escaped in octal.
+     */
+    private static void writeString(Writer writer, byte[] bytes) throws IOException {
+	StringBuilder literal = new StringBuilder("\"");
+	for(int index = 0; index < bytes.length; index++) {
+	    int character = bytes[index] & 0xFF;
+	    if(character == '\n') {
+		literal.append("\\n");
+		if(index + 1 < bytes.length) {
+		    literal.append("\"\n\t\"");
+		}
+	    } else if(character >= ' ' && character < 127 && character != '"' && character != '\\' && character != '?') {
+		literal.append((char)character);
+	    } else {
+		literal.append(String.format("\\%03o", character));
+	    }
+	}
+	writer.write(literal.append('"').toString());
+    }
+
+    /**
+     * @return The statement repeated count times
+     */
+    private static String repeated(int count, String statement) {
+	if(count == 1) {
+	    return statement;
+	}
+	return "for(int repetition = 0; repetition < " + count + "; repetition++) " + statement;
+    }
+
+    private static void writeFail(Writer writer) throws IOException {
+	writer.write("static void fail(const char* message) {\n");
+	writer.write("\tflush();\n");
+	writer.write("\tfprintf(stderr, \"%s\\n\", message);\n");
+	writer.write("\texit(1);\n");
+	writer.write("}\n\n");
+    }
+
+    private static void writeScanLeft(Writer writer, boolean checked) throws IOException {
+	writer.write("static inline long scan_left(long pointer) {\n");
+	writer.write("\tcell_t* zero = memrchr(memory, 0, pointer + 1);\n");
+	writer.write("\tif(!zero) fail(\"The pointer moved left of the first cell\");\n");
+	writer.write("\tpointer = zero - memory;\n");
+	if(checked) {
+	    writer.write("\tcheck(pointer);\n");
+	}
+	writer.write("\treturn pointer;\n");
+	writer.write("}\n\n");
+    }
+
+    /**
+     * Scans in steps of one are done by the (highly optimized) memchr and memrchr.
+     * These search bytes, so wider cells are scanned one by one.
+     *
+     * @param tape The kind of tape the program runs on
+     * @param checked Whether every step has to be checked
+     * @param cellBits The width of a cell
+     * @return The statement that moves the pointer to the next zero cell
+     */
+    private static String scan(int step, Tape tape, boolean checked, int cellBits) {
+	boolean bytes = cellBits == 8;
+	if(tape == Tape.MAPPED && bytes) {
+	    if(step == 1) {
+		// The zero is found at the latest when reaching the guard
+		return "pointer = (cell_t*)rawmemchr(memory + pointer, 0) - memory;";
+	    }
+	    if(step == -1) {
+		return "pointer = scan_left(pointer);";
+	    }
+	}
+	if(tape == Tape.GROWING) {
+	    if(bytes && step == 1) {
+		return "pointer = scan_right(pointer);";
+	    }
+	    if(bytes && step == -1) {
+		return "pointer = scan_left(pointer);";
+	    }
+	}
+	if(checked) {
+	    return "while(memory[pointer]) { pointer " + signed(step) + "; check(pointer); }";
+	}
+	if(bytes && step == 1) {
+	    return "pointer = (cell_t*)memchr(memory + pointer, 0, sizeof(memory) - pointer) - memory;";
+	}
+	if(bytes && step == -1) {
+	    return "pointer = (cell_t*)memrchr(memory, 0, pointer + 1) - memory;";
+	}
+	return "while(memory[pointer]) pointer " + signed(step) + ";";
+    }
+
+    private static void indent(Writer writer, int depth) throws IOException {
+	for(int level = 0; level < depth; level++) {
+	    writer.write('\t');
+	}
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in Compiler.java");
+	testFolding();
+	testIo();
+	testMappedTape();
+	testEmptyResidual();
+
+	System.out.println("------\nDone.");
+    }
+
+    /** What a test program did */
+    static class Execution {
+	int status;
+	String output;
+	String errors;
+    }
+
+    /**
+     * Runs an executable on the input, for the tests of the backends.
+     * Bytes are read and written as ISO-8859-1 characters.
+     */
+    static Execution execute(File executable, String input) throws IOException {
+	File errors = File.createTempFile("chris-errors", null);
+	try {
+	    Process process = new ProcessBuilder(executable.getPath()).redirectError(errors).start();
+	    try(OutputStream in = process.getOutputStream()) {
+		in.write(input.getBytes(StandardCharsets.ISO_8859_1));
+	    }
+	    Execution execution = new Execution();
+	    execution.output = new String(process.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+	    execution.status = process.waitFor();
+	    execution.errors = new String(Files.readAllBytes(errors.toPath()), StandardCharsets.ISO_8859_1);
+	    return execution;
+	} catch(InterruptedException ex) {
+	    throw new IllegalStateException(ex);
+	} finally {
+	    errors.delete();
+	}
+    }
+
+    /**
+     * Compiles the program with the C compiler, which must not warn
+     * about it, and runs it on the input.
+     *
+     * @return What it did, or null if there is no C compiler
+     */
+    private static Execution run(ArrayList<Ir.Node> program, boolean mapped, PartialEvaluator.Result state,
+				 String command, String input) throws IOException {
+	File executable = File.createTempFile("chris-compiler-test", null);
+	try {
+	    Toolchain toolchain;
+	    try {
+		toolchain = new Toolchain(command, executable.getPath());
+	    } catch(CompileException ex) {
+		return null;
+	    }
+	    compile(program, toolchain.writer(), TapeBounds.analyze(program), mapped, 8, state);
+	    String diagnostics = toolchain.finish();
+	    assert diagnostics.isEmpty() : diagnostics;
+	    return execute(executable, input);
+	} finally {
+	    executable.delete();
+	}
+    }
+
+    private static Execution run(String source, boolean mapped, String input) throws IOException {
+	return run(Optimizer.optimize(source), mapped, null, Toolchain.defaultCommand(), input);
+    }
+
+    private static String code(String source, boolean mapped) throws IOException {
+	ArrayList<Ir.Node> program = Optimizer.optimize(source);
+	StringWriter writer = new StringWriter();
+	compile(program, writer, TapeBounds.analyze(program), mapped, 8);
+	return writer.toString();
+    }
+
+    private static void testFolding() {
+	System.out.println("Starting to test folding");
+	try {
+	    // Runs become a single statement each
+	    String source = "A".repeat(65) + "O" + "R".repeat(3) + "A".repeat(66) + "O";
+	    String code = code(source, false);
+	    assert code.contains("memory[pointer] += 65;") && code.contains("memory[pointer+3] += 66;") : code;
+	    Execution execution = run(source, false, "");
+	    if(execution == null) {
+		System.out.println("No C compiler, skipped");
+		return;
+	    }
+	    assert execution.status == 0 && execution.output.equals("AB") : execution.output;
+
+	    // Scans in steps of one search with memchr and memrchr on either tape
+	    source = "RARARARA{L}" + "A".repeat(65) + "O{R}" + "A".repeat(66) + "O";
+	    assert code(source, false).contains("memchr(") && code(source, false).contains("memrchr(");
+	    assert code(source, true).contains("rawmemchr(") && code(source, true).contains("memrchr(");
+	    for(boolean mapped : new boolean[] {false, true}) {
+		execution = run(source, mapped, "");
+		assert execution.status == 0 && execution.output.equals("AB") : mapped + " " + execution.output;
+	    }
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testIo() {
+	System.out.println("Starting to test I/O");
+	try {
+	    // Echoes its input, the end of it reads as 0
+	    Execution execution = run("I{OI}", false, "hello, world");
+	    if(execution == null) {
+		System.out.println("No C compiler, skipped");
+		return;
+	    }
+	    assert execution.status == 0 && execution.output.equals("hello, world") : execution.output;
+	    execution = run("I" + "A".repeat(65) + "OIO", false, "\u0001");
+	    assert execution.output.equals("B\u0000") : execution.output;
+
+	    // More than the buffer holds, the rest is flushed at exit
+	    execution = run("D{DR" + "A".repeat(65) + "O".repeat(300) + "{D}L}", false, "");
+	    assert execution.output.length() == 255 * 300 : execution.output.length();
+	    assert execution.output.chars().allMatch(c -> c == 'A');
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testMappedTape() {
+	System.out.println("Starting to test mapped tapes");
+	try {
+	    // Small steps run into the guard page, large ones are checked
+	    String output = "A".repeat(65) + "O";
+	    for(String source : new String[] {output + "{LA}", output + "{" + "L".repeat(70000) + "A}"}) {
+		Execution execution = run(source, true, "");
+		if(execution == null) {
+		    System.out.println("No C compiler, skipped");
+		    return;
+		}
+		assert execution.status == 1 && execution.output.equals("A") : execution.output;
+		assert execution.errors.equals("The pointer left the tape\n") : execution.errors;
+	    }
+	    assert code(output + "{" + "L".repeat(70000) + "A}", true).contains("check(pointer);");
+	    assert !code(output + "{LA}", true).contains("check(pointer);");
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testEmptyResidual() {
+	System.out.println("Starting to test empty residual programs");
+	try {
+	    PartialEvaluator.Result state = PartialEvaluator.evaluate(Optimizer.optimize("A".repeat(33) + "O"), 8,
+								      PartialEvaluator.DEFAULT_STEP_BUDGET);
+	    assert state.residual.isEmpty();
+	    StringWriter writer = new StringWriter();
+	    compile(state.residual, writer, TapeBounds.analyze(state.residual), false, 8, state);
+	    assert !writer.toString().contains("memory[") && !writer.toString().contains("pointer") : writer;
+
+	    // Nothing is declared that the program does not use
+	    Execution execution = run(state.residual, false, state, Toolchain.defaultCommand() + " -Wall", "");
+	    if(execution == null) {
+		System.out.println("No C compiler, skipped");
+		return;
+	    }
+	    assert execution.status == 0 && execution.output.equals("!") : execution.output;
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
     }
+}
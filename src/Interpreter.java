@@ -0,0 +1,502 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+
+import src.Ir;
+import src.CompileException;
+
+/**
+ * Interpreter runs a program directly in the JVM, without going through C.
+ * The program is translated into a flat instruction array first. The
+ * targets of all loops are resolved once, so a loop never has to search
+ * for its matching bracket.
+ *
+ * Execution is tiered: every loop counts how often it jumps back. Once a
+ * loop crosses the threshold, it is compiled to bytecode by the
+ * BytecodeCompiler and runs as a JIT-compiled method from then on. Only
+ * loops that leave the pointer where it was can be compiled, as the tape
+ * cannot grow while compiled code runs.
+ *
+ * With a Profile, loops that were hot before are compiled right away and
+ * loops that never ran are never compiled. The Interpreter also makes
+ * profiles: then every loop counts its entries and iterations, and no loop
+ * is compiled, as compiled loops do not count.
+ *
+ * Cells are ints, which are masked to the width of a cell after every change.
+ */
+public class Interpreter {
+    // Every instruction takes up WIDTH ints: opcode, value, offset, source
+    private static final int WIDTH = 4;
+
+    private static final int ADD = 0;
+    private static final int MOVE = 1;
+    private static final int INPUT = 2;
+    private static final int OUTPUT = 3;
+    private static final int JUMP_IF_ZERO = 4;     // value is the index behind the matching JUMP_IF_NOT_ZERO
+    private static final int JUMP_IF_NOT_ZERO = 5; // value is the index behind the matching JUMP_IF_ZERO
+    private static final int SET = 6;
+    private static final int MULADD = 7;
+    private static final int SCAN = 8;
+    private static final int COMPILED = 9;         // replaces the JUMP_IF_ZERO of a compiled loop
+
+    private static final int INITIAL_TAPE_SIZE = 1 << 16;
+    /** The number of back jumps, after which a loop is compiled by default */
+    public static final int DEFAULT_TIER_THRESHOLD = 10000;
+
+    private ArrayList<Ir.Node> program;
+    private int[] code;
+    private int cellBits;
+    private int mask;
+    // The smallest and biggest offset any instruction accesses
+    private int minOffset;
+    private int maxOffset;
+
+    // Per loop, in the order of their starts. The offset of a jump is its loop.
+    private int tierThreshold;
+    private int[] loopStarts;
+    private int[] backJumps;
+    private boolean[] compilable;
+    private int[] loopMinOffsets;
+    private int[] loopMaxOffsets;
+    private MethodHandle[] compiledLoops;
+    // The profile that is counted into, or null
+    private Profile counted;
+
+    /**
+     * @param program The program to run
+     */
+    public Interpreter(ArrayList<Ir.Node> program) {
+	this(program, 0);
+    }
+
+    /**
+     * @param program The program to run
+     * @param tierThreshold The number of back jumps after which a loop is compiled. 0 never compiles.
+     */
+    public Interpreter(ArrayList<Ir.Node> program, int tierThreshold) {
+	this(program, tierThreshold, 8);
+    }
+
+    /**
+     * @param program The program to run
+     * @param tierThreshold The number of back jumps after which a loop is compiled. 0 never compiles.
+     * @param cellBits The width of a cell: 8, 16 or 32
+     */
+    public Interpreter(ArrayList<Ir.Node> program, int tierThreshold, int cellBits) {
+	this.program = program;
+	this.tierThreshold = tierThreshold;
+	this.cellBits = cellBits;
+	this.mask = cellBits == 32 ? -1 : (1 << cellBits) - 1;
+	code = new int[program.size() * WIDTH];
+	ArrayDeque<Integer> loops = new ArrayDeque<Integer>();
+	int loopCount = 0;
+	int pc = 0;
+	for(Ir.Node node : program) {
+	    code[pc + 1] = node.value;
+	    code[pc + 2] = node.offset;
+	    code[pc + 3] = node.source;
+	    minOffset = Math.min(minOffset, Math.min(node.offset, node.source));
+	    maxOffset = Math.max(maxOffset, Math.max(node.offset, node.source));
+	    switch(node.op) {
+	    case ADD:
+		code[pc] = ADD;
+		break;
+	    case MOVE:
+		code[pc] = MOVE;
+		break;
+	    case INPUT:
+		code[pc] = INPUT;
+		break;
+	    case OUTPUT:
+		code[pc] = OUTPUT;
+		break;
+	    case SET:
+		code[pc] = SET;
+		break;
+	    case MULADD:
+		code[pc] = MULADD;
+		break;
+	    case SCAN:
+		code[pc] = SCAN;
+		break;
+	    case LOOPSTART:
+		code[pc] = JUMP_IF_ZERO;
+		code[pc + 2] = loopCount++;
+		loops.push(pc);
+		break;
+	    case LOOPSTOP:
+		code[pc] = JUMP_IF_NOT_ZERO;
+		int start = loops.pop();
+		code[pc + 1] = start + WIDTH;
+		code[pc + 2] = code[start + 2];
+		code[start + 1] = pc + WIDTH;
+		break;
+	    }
+	    pc += WIDTH;
+	}
+
+	loopStarts = new int[loopCount];
+	backJumps = new int[loopCount];
+	compilable = new boolean[loopCount];
+	loopMinOffsets = new int[loopCount];
+	loopMaxOffsets = new int[loopCount];
+	compiledLoops = new MethodHandle[loopCount];
+	analyzeLoops();
+    }
+
+    /**
+     * Compiles the hot loops of the profile before the program runs and
+     * keeps the cold ones interpreted. Without tiering, nothing is compiled.
+     *
+     * @param profile A profile of this program
+     */
+    public void useProfile(Profile profile) {
+	for(int loop = 0; loop < loopStarts.length; loop++) {
+	    if(profile.cold(loop)) {
+		compilable[loop] = false;
+	    } else if(profile.hot(loop) && compilable[loop] && tierThreshold > 0) {
+		compile(loop);
+	    }
+	}
+    }
+
+    /**
+     * Runs the program like run, interpreted only, and counts its loops.
+     *
+     * @return The profile of this run
+     */
+    public Profile profile(InputStream in, OutputStream out) throws IOException {
+	counted = new Profile(loopStarts.length);
+	tierThreshold = 0;
+	run(in, out);
+	return counted;
+    }
+
+    /**
+     * Runs the program.
+     *
+     * @param in The stream INPUT reads from. At its end, INPUT stores 0.
+     * @param out The stream OUTPUT writes to. It is flushed when the program ends.
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+	in = new BufferedInputStream(in);
+	out = new BufferedOutputStream(out, 1 << 16);
+	int[] code = this.code;
+	int mask = this.mask;
+	long[] entries = counted == null ? null : counted.entries;
+	long[] iterations = counted == null ? null : counted.iterations;
+	int[] tape = new int[INITIAL_TAPE_SIZE];
+	// Cells left of the pointer can be accessed through negative offsets
+	int pointer = -minOffset;
+	tape = ensureCapacity(tape, pointer);
+	int pc = 0;
+	while(pc < code.length) {
+	    switch(code[pc]) {
+	    case ADD:
+		int cell = pointer + code[pc + 2];
+		tape[cell] = (tape[cell] + code[pc + 1]) & mask;
+		break;
+	    case MOVE:
+		pointer += code[pc + 1];
+		tape = ensureCapacity(tape, pointer);
+		break;
+	    case INPUT:
+		for(int read = code[pc + 1]; read > 0; read--) {
+		    int character = in.read();
+		    tape[pointer + code[pc + 2]] = character < 0 ? 0 : character & mask;
+		}
+		break;
+	    case OUTPUT:
+		for(int written = code[pc + 1]; written > 0; written--) {
+		    out.write(tape[pointer + code[pc + 2]]);
+		}
+		break;
+	    case JUMP_IF_ZERO:
+		if(tape[pointer] == 0) {
+		    pc = code[pc + 1];
+		    continue;
+		}
+		if(entries != null) {
+		    entries[code[pc + 2]]++;
+		    iterations[code[pc + 2]]++;
+		}
+		break;
+	    case JUMP_IF_NOT_ZERO:
+		if(tape[pointer] != 0) {
+		    int loop = code[pc + 2];
+		    if(iterations != null) {
+			iterations[loop]++;
+		    }
+		    if(tierThreshold > 0 && compilable[loop] && ++backJumps[loop] >= tierThreshold) {
+			compile(loop);
+			// Run the remaining iterations compiled, if the loop fits on the tape
+			if(code[loopStarts[loop]] == COMPILED && pointer + loopMinOffsets[loop] >= 0) {
+			    tape = grow(tape, pointer + loopMaxOffsets[loop]);
+			    pointer = runCompiled(loop, tape, pointer, in, out);
+			    break;
+			}
+		    }
+		    pc = code[pc + 1];
+		    continue;
+		}
+		break;
+	    case COMPILED:
+		int loop = code[pc + 2];
+		if(pointer + loopMinOffsets[loop] >= 0) {
+		    tape = grow(tape, pointer + loopMaxOffsets[loop]);
+		    pointer = runCompiled(loop, tape, pointer, in, out);
+		    pc = code[pc + 1];
+		    continue;
+		}
+		// The loop would access cells left of the tape, report that while interpreting it
+		if(tape[pointer] == 0) {
+		    pc = code[pc + 1];
+		    continue;
+		}
+		break;
+	    case SET:
+		tape[pointer + code[pc + 2]] = code[pc + 1] & mask;
+		break;
+	    case MULADD:
+		cell = pointer + code[pc + 2];
+		tape[cell] = (tape[cell] + tape[pointer + code[pc + 3]] * code[pc + 1]) & mask;
+		break;
+	    case SCAN:
+		int step = code[pc + 1];
+		while(tape[pointer] != 0) {
+		    pointer += step;
+		    tape = ensureCapacity(tape, pointer);
+		}
+		break;
+	    }
+	    pc += WIDTH;
+	}
+	out.flush();
+    }
+
+    /**
+     * Finds the loops that can be compiled and the cells they access,
+     * relative to the pointer at their start. A loop can be compiled, if it
+     * does not scan and every loop in it (including itself) leaves the
+     * pointer where it was.
+     */
+    private void analyzeLoops() {
+	// Per open loop: the current position, and the smallest and biggest offset
+	ArrayDeque<int[]> open = new ArrayDeque<int[]>();
+	int loop = 0;
+	for(int index = 0; index < program.size(); index++) {
+	    Ir.Node node = program.get(index);
+	    int[] frame = open.peek();
+	    switch(node.op) {
+	    case LOOPSTART:
+		loopStarts[loop] = index * WIDTH;
+		compilable[loop] = true;
+		open.push(new int[] {0, 0, 0, loop});
+		loop++;
+		break;
+	    case LOOPSTOP:
+		open.pop();
+		int inner = frame[3];
+		if(frame[0] != 0) {
+		    compilable[inner] = false;
+		}
+		loopMinOffsets[inner] = frame[1];
+		loopMaxOffsets[inner] = frame[2];
+		int[] outer = open.peek();
+		if(outer != null) {
+		    compilable[outer[3]] &= compilable[inner];
+		    outer[1] = Math.min(outer[1], outer[0] + frame[1]);
+		    outer[2] = Math.max(outer[2], outer[0] + frame[2]);
+		}
+		break;
+	    case MOVE:
+		if(frame != null) {
+		    frame[0] += node.value;
+		    frame[1] = Math.min(frame[1], frame[0]);
+		    frame[2] = Math.max(frame[2], frame[0]);
+		}
+		break;
+	    case SCAN:
+		for(int[] enclosing : open) {
+		    compilable[enclosing[3]] = false;
+		}
+		break;
+	    default:
+		if(frame != null) {
+		    frame[1] = Math.min(frame[1], frame[0] + Math.min(node.offset, node.source));
+		    frame[2] = Math.max(frame[2], frame[0] + Math.max(node.offset, node.source));
+		}
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Compiles a loop and lets its start jump into the compiled code.
+     * If the loop cannot be compiled, it stays interpreted.
+     */
+    private void compile(int loop) {
+	compilable[loop] = false;
+	int start = loopStarts[loop];
+	int stop = code[start + 1] - WIDTH;
+	try {
+	    compiledLoops[loop] = BytecodeCompiler.compileRange(program, start / WIDTH, stop / WIDTH + 1, cellBits);
+	    code[start] = COMPILED;
+	} catch(IllegalStateException ex) {
+	    // Keep interpreting the loop
+	}
+    }
+
+    private int runCompiled(int loop, int[] tape, int pointer,
+			    InputStream in, OutputStream out) throws IOException {
+	try {
+	    return (int)compiledLoops[loop].invokeExact(tape, pointer, in, out);
+	} catch(IOException | RuntimeException | Error ex) {
+	    throw ex;
+	} catch(Throwable ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in Interpreter.java");
+	testRun();
+	testTiers();
+	testProfile();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static String run(String source, String input, int tierThreshold) throws IOException {
+	return run(source, input, tierThreshold, 8);
+    }
+
+    private static String run(String source, String input, int tierThreshold, int cellBits) throws IOException {
+	ArrayList<Ir.Node> program = Optimizer.optimize(source);
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	new Interpreter(program, tierThreshold, cellBits).run(new ByteArrayInputStream(input.getBytes()), out);
+	return out.toString();
+    }
+
+    private static void testRun() {
+	System.out.println("Starting to test run");
+	try {
+	    assert run("AAAA{RAAAA{RAAAALD}LD}RRO", "", 0).equals("@");
+	    assert run("RI{OI}", "abc", 0).equals("abc");
+	    assert run("RIDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDD{LAR-}LO", "a", 0).equals("A");
+	    // Cells wrap around
+	    assert run("D{R{D}LD}AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAO", "", 0).equals("A");
+	    // 16 * 16 wraps to 0 in 8 bits, in 16 bits the second loop divides it by 4
+	    String quarter = "AAAAAAAAAAAAAAAA{DRAAAAAAAAAAAAAAAAL}R{DDDDRAL}RAO";
+	    assert run(quarter, "", 0, 8).equals("\u0001");
+	    assert run(quarter, "", 0, 16).equals("A");
+	    assert run(quarter, "", 0, 32).equals("A");
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	try {
+	    run("A{LA}", "", 0);
+	    assert false : "The pointer moved left of the first cell";
+	} catch(CompileException ex) {
+	    assert ex.getMessage().equals("The pointer moved left of the first cell") : ex;
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testTiers() {
+	System.out.println("Starting to test tiered execution");
+	try {
+	    // Both loops are compiled after their third iteration
+	    String source = "AAAAA{RAAAAAA{RAAAAAAAAAOLD}R{RAAL-}LLD}RRRO";
+	    assert run(source, "", 3).equals(run(source, "", 0));
+	    // The loop moves the pointer, so it has to stay interpreted
+	    source = "AAARAAARAAALL{DR}LO";
+	    assert run(source, "", 2).equals(run(source, "", 0));
+	    assert run("RI{OI}", "abcdef", 2).equals("abcdef");
+	    // Compiled loops wrap their cells like interpreted ones
+	    source = "AAAAAAAAAAAAAAAA{DRAAAAAAAAAAAAAAAAL}R{DDDDRAL}RAO";
+	    assert run(source, "", 2, 8).equals("\u0001");
+	    assert run(source, "", 2, 16).equals("A");
+	    // Hot loops skip repeated input like interpreted ones
+	    for(String repeated : new String[] {"A{IIO}", "A{IIIO}", "A{IIIIO}", "AAAA{RIIIORIIOLLD}"}) {
+		assert run(repeated, "abcdefghijkl", 1).equals(run(repeated, "abcdefghijkl", 0)) : repeated;
+	    }
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testProfile() {
+	System.out.println("Starting to test profiles");
+	try {
+	    // The outer loop runs 5 times, the inner one 5 * 200 times, the last one never
+	    String source = "AAAAA{R" + "A".repeat(200) + "{DO}LD}{O}";
+	    ArrayList<Ir.Node> program = Optimizer.optimize(source);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    Profile profile = new Interpreter(program, 1).profile(new ByteArrayInputStream(new byte[0]), out);
+	    assert out.size() == 1000;
+	    assert profile.loops() == 3;
+	    assert profile.entries(0) == 1 && profile.iterations(0) == 5;
+	    assert profile.entries(1) == 5 && profile.iterations(1) == 1000;
+	    assert profile.cold(2);
+	    assert profile.describe().equals(".hc") : profile.describe();
+
+	    // Hot loops run compiled from the start
+	    Interpreter interpreter = new Interpreter(program, 1);
+	    interpreter.useProfile(profile);
+	    assert interpreter.code[interpreter.loopStarts[1]] == COMPILED;
+	    assert !interpreter.compilable[2];
+	    ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+	    interpreter.run(new ByteArrayInputStream(new byte[0]), compiled);
+	    assert Arrays.equals(compiled.toByteArray(), out.toByteArray());
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	System.out.println("Done.");
+    }
+
+    /**
+     * Grows the tape, so that every offset from pointer is inside of it.
+     * The first cell of the program is at -minOffset.
+     *
+     * @return The tape, or a bigger copy of it
+     * @throws CompileException If the pointer moved left of the first cell
+     */
+    private int[] ensureCapacity(int[] tape, int pointer) {
+	if(pointer + minOffset < 0) {
+	    throw new CompileException("The pointer moved left of the first cell");
+	}
+	return grow(tape, pointer + maxOffset);
+    }
+
+    /**
+     * @return The tape, or a bigger copy of it that contains the given index
+     * @throws CompileException If the tape cannot grow that far
+     */
+    private static int[] grow(int[] tape, int index) {
+	if(index >= tape.length) {
+	    long size = tape.length;
+	    while(index >= size) {
+		size *= 2;
+	    }
+	    if(size > Integer.MAX_VALUE - 8) {
+		throw new CompileException("The pointer moved too far right");
+	    }
+	    tape = Arrays.copyOf(tape, (int)size);
+	}
+	return tape;
+    }
+}
@@ -0,0 +1,201 @@
+package src;
+
+import java.util.ArrayList;
+
+/**
+ * Ir is the intermediate representation between the Lexer and the Compiler.
+ * Runs of commands are folded into single nodes that carry a count, so
+ * "AAAD" becomes one Add(2) and "RRL" becomes one Move(1).
+ */
+public class Ir {
+    /**
+     * The operations of the nodes. Every cell access is relative to the
+     * pointer, the cell is memory[pointer + offset].
+     */
+    public static enum Op {
+	ADD,       // memory[pointer + offset] += value
+	MOVE,      // pointer += value
+	INPUT,     // reads value characters into memory[pointer + offset]
+	OUTPUT,    // writes memory[pointer + offset] value times
+	LOOPSTART, // while(memory[pointer]) {
+	LOOPSTOP,  // }
+	SET,       // memory[pointer + offset] = value
+	MULADD,    // memory[pointer + offset] += memory[pointer + source] * value
+	SCAN;      // while(memory[pointer]) pointer += value
+    }
+
+    public static class Node {
+	public Op op;
+	public int value;
+	public int offset;
+	public int source;
+
+	public Node(Op op, int value) {
+	    this(op, value, 0, 0);
+	}
+
+	public Node(Op op, int value, int offset) {
+	    this(op, value, offset, 0);
+	}
+
+	public Node(Op op, int value, int offset, int source) {
+	    this.op = op;
+	    this.value = value;
+	    this.offset = offset;
+	    this.source = source;
+	}
+
+	@Override
+	public String toString() {
+	    if(source != 0) {
+		return op.name() + "(" + value + ", " + offset + ", " + source + ")";
+	    }
+	    if(offset != 0) {
+		return op.name() + "(" + value + ", " + offset + ")";
+	    }
+	    return op.name() + "(" + value + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+	    if(other == this) {
+		return true;
+	    }
+	    if(!(other instanceof Node)) {
+		return false;
+	    }
+	    Node otherNode = (Node)other;
+	    return otherNode.op == this.op && otherNode.value == this.value
+		&& otherNode.offset == this.offset && otherNode.source == this.source;
+	}
+
+	@Override
+	public int hashCode() {
+	    return ((op.hashCode() * 31 + value) * 31 + offset) * 31 + source;
+	}
+    }
+
+    /**
+     * Builder folds tokens into nodes, one run at a time. Runs that cancel
+     * each other out (like "AD" or "RL") vanish completely.
+     */
+    public static class Builder {
+	private ArrayList<Node> nodes;
+	private int depth;
+
+	public Builder(ArrayList<Node> nodes) {
+	    this.nodes = nodes;
+	    this.depth = 0;
+	}
+
+	/**
+	 * Adds count repetitions of a token.
+	 */
+	public void add(Lexer.TokenType type, int count) {
+	    switch(type) {
+	    case INCREASE:
+		fold(Op.ADD, count);
+		break;
+	    case DECREASE:
+		fold(Op.ADD, -count);
+		break;
+	    case RIGHT:
+		fold(Op.MOVE, count);
+		break;
+	    case LEFT:
+		fold(Op.MOVE, -count);
+		break;
+	    case INPUT:
+		fold(Op.INPUT, count);
+		break;
+	    case OUTPUT:
+		fold(Op.OUTPUT, count);
+		break;
+	    case LOOPSTART:
+		for(int loop = 0; loop < count; loop++) {
+		    nodes.add(new Node(Op.LOOPSTART, 0));
+		    depth++;
+		}
+		break;
+	    case LOOPSTOP:
+		for(int loop = 0; loop < count; loop++) {
+		    if(depth == 0) {
+			throw new CompileException("Unmatched " + Lexer.TokenType.LOOPSTOP);
+		    }
+		    nodes.add(new Node(Op.LOOPSTOP, 0));
+		    depth--;
+		}
+		break;
+	    }
+	}
+
+	/**
+	 * Checks that all loops have been closed.
+	 */
+	public void finish() {
+	    if(depth != 0) {
+		throw new CompileException(depth + " unmatched " + Lexer.TokenType.LOOPSTART);
+	    }
+	}
+
+	private void fold(Op op, int value) {
+	    int last = nodes.size() - 1;
+	    if(last >= 0 && nodes.get(last).op == op) {
+		Node node = nodes.get(last);
+		node.value += value;
+		// ADD and MOVE runs can cancel each other out
+		if(node.value == 0) {
+		    nodes.remove(last);
+		}
+	    } else if(value != 0) {
+		nodes.add(new Node(op, value));
+	    }
+	}
+    }
+
+    /**
+     * Builds the intermediate representation of a whole TokenStream.
+     *
+     * @param tokens The tokens to fold
+     * @return The program as a list of nodes
+     */
+    public static ArrayList<Node> build(TokenStream tokens) {
+	ArrayList<Node> nodes = new ArrayList<Node>();
+	Builder builder = new Builder(nodes);
+	for(int index = 0; index < tokens.size(); index++) {
+	    builder.add(tokens.get(index), tokens.count(index));
+	}
+	builder.finish();
+	return nodes;
+    }
+
+    /**
+     * Builds the intermediate representation of a source, e.g. for tests.
+     */
+    static ArrayList<Node> build(String source) {
+	return build(Lexer.lex(source.getBytes()));
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in Ir.java");
+	testBuild();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testBuild() {
+	System.out.println("Starting to test build");
+	ArrayList<Node> nodes = build("AAAD{RRLdr}AdOO");
+
+	assert nodes.size() == 7 : nodes;
+	assert nodes.get(0).equals(new Node(Op.ADD, 2));
+	assert nodes.get(1).equals(new Node(Op.LOOPSTART, 0));
+	assert nodes.get(2).equals(new Node(Op.MOVE, 1));
+	assert nodes.get(3).equals(new Node(Op.ADD, -1));
+	assert nodes.get(4).equals(new Node(Op.MOVE, 1));
+	assert nodes.get(5).equals(new Node(Op.LOOPSTOP, 0));
+	// "Ad" cancels out completely
+	assert nodes.get(6).equals(new Node(Op.OUTPUT, 2));
+	System.out.println("Done.");
+    }
+}
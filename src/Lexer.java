@@ -1,12 +1,24 @@
 package src;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Pattern;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 
 /**
  * Lexer reads in a String, creates tokens out of it and gives them some context
  * 
+ * Every byte of the source is classified with a lookup table, that is built
+ * once from the patterns in TokenType. This way no regular expression has to be
+ * matched while lexing.
  */
 
 public class Lexer {
@@ -58,9 +70,31 @@ public class Lexer {
 	}
     }
 
+    /** Marks a byte that is not a command */
+    private static final byte UNKNOWN = -1;
+    /** Marks a line terminator, which is skipped just like readAllLines did */
+    private static final byte SKIPPED = -2;
+
+    /** Size of the buffer the source is streamed through */
+    private static final int CHUNK_SIZE = 1 << 16;
+    /** Size of the chunks that are lexed in parallel */
+    private static final int PARALLEL_CHUNK_SIZE = 1 << 20;
+    /** Sources larger than this are lexed in parallel, if there are several cores */
+    private static final long PARALLEL_THRESHOLD = 1L << 24;
+    /** The loop tokens have the highest ordinals */
+    private static final byte LOOPSTART = (byte)TokenType.LOOPSTART.ordinal();
+    private static final byte LOOPSTOP = (byte)TokenType.LOOPSTOP.ordinal();
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+    private static final byte[] CLASS_TABLE = buildClassTable();
+
     public static void testAll() {
 	System.out.println("Starting tests in Lexer.java");
 	testCreateTokenFrom();
+	testClassTable();
+	testLex();
+	testLexParallel();
+	testBrackets();
 
 	System.out.println("------\nDone.");
 
@@ -87,36 +121,460 @@ public class Lexer {
 	assert createTokenFrom("o").type == TokenType.OUTPUT;
 	assert createTokenFrom("O").type == TokenType.OUTPUT;
 
-	assert createTokenFrom(null).type == null;
-	assert createTokenFrom("asdf").type == null;
-	assert createTokenFrom("").type == null;
+	assert createTokenFrom(null) == null;
+	assert createTokenFrom("asdf") == null;
+	assert createTokenFrom("") == null;
 	
 	System.out.println("Done.");
     }
-    
+
+    private static void testClassTable() {
+	System.out.println("Starting to test the class table");
+	for(int character = 0; character < 256; character++) {
+	    String command = String.valueOf((char)character);
+	    TokenType expected = null;
+	    for(TokenType tokenType : TOKEN_TYPES) {
+		if(Pattern.matches(tokenType.pattern, command)) {
+		    expected = tokenType;
+		    break;
+		}
+	    }
+	    assert typeOf(character) == expected : "Wrong class for character " + character;
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testLex() {
+	System.out.println("Starting to test lex");
+	byte[] source = "xA{dR}\r\nlOi+".getBytes();
+	TokenStream tokens = new TokenStream();
+	lex(source, 1, source.length - 1, tokens);
+	TokenType[] expected = {TokenType.INCREASE, TokenType.LOOPSTART, TokenType.DECREASE,
+				TokenType.RIGHT, TokenType.LOOPSTOP, TokenType.LEFT,
+				TokenType.OUTPUT, TokenType.INPUT, TokenType.INCREASE};
+	assert tokens.size() == expected.length;
+	for(int index = 0; index < expected.length; index++) {
+	    assert tokens.get(index) == expected[index];
+	}
+
+	source = "AAA\nAdDdl".getBytes();
+	tokens = new TokenStream();
+	lex(source, 0, source.length, tokens);
+	assert tokens.size() == 3;
+	assert tokens.get(0) == TokenType.INCREASE && tokens.count(0) == 4;
+	assert tokens.get(1) == TokenType.DECREASE && tokens.count(1) == 3;
+	assert tokens.get(2) == TokenType.LEFT && tokens.count(2) == 1;
+	assert tokens.commands() == 8;
+	System.out.println("Done.");
+    }
+
+    private static void testLexParallel() {
+	System.out.println("Starting to test lexParallel");
+	StringBuilder program = new StringBuilder();
+	for(int repetition = 0; repetition < 1000; repetition++) {
+	    program.append("A".repeat(repetition % 13)).append("{DRR{lo}\nIi}");
+	    program.append("R".repeat(repetition % 5)).append(repetition % 3 == 0 ? "{{}}" : "O");
+	}
+	byte[] source = program.toString().getBytes();
+	TokenStream expected = new TokenStream();
+	lex(source, 0, source.length, expected);
+	// Chunks as small as this split runs and loops everywhere
+	for(int chunkSize : new int[] {1, 7, 64, source.length}) {
+	    TokenStream tokens = lexParallel(source, ForkJoinPool.commonPool(), chunkSize);
+	    assert tokens.size() == expected.size() : chunkSize;
+	    assert tokens.commands() == expected.commands() : chunkSize;
+	    for(int index = 0; index < expected.size(); index++) {
+		assert tokens.get(index) == expected.get(index) && tokens.count(index) == expected.count(index) : index;
+	    }
+	}
+	System.out.println("Done.");
+    }
+
+    private static void testBrackets() {
+	System.out.println("Starting to test the brackets");
+	String[] programs = {"A{R}}{", "{{}{A}", "A{}R{{}}{AA{}", "}"};
+	String[] messages = {"Unmatched LOOPSTOP at offset 4", "1 unmatched LOOPSTART, the first at offset 0",
+			     "1 unmatched LOOPSTART, the first at offset 8", "Unmatched LOOPSTOP at offset 0"};
+	for(int program = 0; program < programs.length; program++) {
+	    byte[] source = programs[program].getBytes();
+	    for(int chunkSize : new int[] {1, 2, 3, 5, source.length}) {
+		try {
+		    if(chunkSize == source.length) {
+			lex(source, 0, source.length, new TokenStream());
+		    } else {
+			lexParallel(source, ForkJoinPool.commonPool(), chunkSize);
+		    }
+		    assert false : programs[program];
+		} catch(CompileException ex) {
+		    assert ex.getMessage().equals(messages[program]) : ex.getMessage() + " " + chunkSize;
+		}
+	    }
+	}
+	System.out.println("Done.");
+    }
+
+    /**
+     * Returns the TokenType of a single character, or null if the character
+     * is not a command.
+     */
+    public static TokenType typeOf(int character) {
+	if(character < 0 || character >= CLASS_TABLE.length) {
+	    return null;
+	}
+	byte tokenClass = CLASS_TABLE[character];
+	return tokenClass < 0 ? null : TOKEN_TYPES[tokenClass];
+    }
+
     public static Token createTokenFrom(String command) {
-	if(command == null) {
+	if(command == null || command.length() != 1) {
 	    return null;
 	}
-        for (TokenType tokenType : TokenType.values()) {
-	    String pattern = tokenType.pattern;
-	    if(Pattern.matches(pattern, command)) {
-		return new Token(tokenType);
+	TokenType type = typeOf(command.charAt(0));
+	return type == null ? null : new Token(type);
+    }
+
+    /**
+     * Lexes length bytes of source, starting at offset, and appends the
+     * tokens to the given TokenStream. Line terminators are skipped.
+     *
+     * @param source The raw source code
+     * @param offset The index of the first byte to lex
+     * @param length The number of bytes to lex
+     * @param tokens The TokenStream the tokens are appended to
+     */
+    public static void lex(byte[] source, int offset, int length, TokenStream tokens) {
+	Brackets brackets = new Brackets();
+	brackets.add(lex(source, offset, length, offset, tokens), source, offset, length, offset);
+	brackets.finish();
+    }
+
+    /**
+     * Lexes a whole source, in parallel if it is large and there are several cores.
+     *
+     * @return The tokens of the source
+     */
+    public static TokenStream lex(byte[] source) {
+	if(source.length > PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1) {
+	    return lexParallel(source, ForkJoinPool.commonPool());
+	}
+	TokenStream tokens = new TokenStream(Math.min(source.length, CHUNK_SIZE));
+	lex(source, 0, source.length, tokens);
+	return tokens;
+    }
+
+    /**
+     * Splits the source into chunks, which are lexed on the given pool.
+     * Each chunk is lexed on its own, starting at depth 0. Adding up the
+     * depths of the chunks before it gives the depth a chunk really starts
+     * at, which is enough to check the loops without lexing it again.
+     *
+     * @return The tokens of the source
+     */
+    public static TokenStream lexParallel(byte[] source, ForkJoinPool pool) {
+	return lexParallel(source, pool, PARALLEL_CHUNK_SIZE);
+    }
+
+    private static TokenStream lexParallel(byte[] source, ForkJoinPool pool, int chunkSize) {
+	int chunks = Math.max((int)(((long)source.length + chunkSize - 1) / chunkSize), 1);
+	TokenStream[] tokens = new TokenStream[chunks];
+	Nesting[] nestings = new Nesting[chunks];
+	pool.invoke(new ChunkTask(source, chunkSize, 0, chunks, tokens, nestings));
+
+	Brackets brackets = new Brackets();
+	TokenStream result = tokens[0];
+	for(int chunk = 0; chunk < chunks; chunk++) {
+	    int offset = chunk * chunkSize;
+	    int length = Math.min(chunkSize, source.length - offset);
+	    brackets.add(nestings[chunk], source, offset, length, offset);
+	    if(chunk > 0) {
+		result.addAll(tokens[chunk]);
+		tokens[chunk] = null;
+	    }
+	}
+	brackets.finish();
+	return result;
+    }
+
+    /**
+     * Lexes the chunks [from, to), splitting them in halves until a single
+     * one is left.
+     */
+    private static class ChunkTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private byte[] source;
+	private int chunkSize;
+	private int from, to;
+	private TokenStream[] tokens;
+	private Nesting[] nestings;
+
+	ChunkTask(byte[] source, int chunkSize, int from, int to, TokenStream[] tokens, Nesting[] nestings) {
+	    this.source = source;
+	    this.chunkSize = chunkSize;
+	    this.from = from;
+	    this.to = to;
+	    this.tokens = tokens;
+	    this.nestings = nestings;
+	}
+
+	@Override
+	protected void compute() {
+	    if(to - from > 1) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new ChunkTask(source, chunkSize, from, middle, tokens, nestings),
+			  new ChunkTask(source, chunkSize, middle, to, tokens, nestings));
+		return;
 	    }
+	    int offset = from * chunkSize;
+	    int length = Math.min(chunkSize, source.length - offset);
+	    tokens[from] = new TokenStream(Math.min(length, CHUNK_SIZE));
+	    nestings[from] = lex(source, offset, length, offset, tokens[from]);
 	}
-	return null;
     }
 
-    public static ArrayList<Token> lex(ArrayList<String> input){
-	ArrayList<Token> tokens = new ArrayList<Token>();
-	for(String command : input) {
-	    Token token = Lexer.createTokenFrom(command);
-	    if(token == null) {
-		System.out.println("Unkown command " + input);
-		System.exit(-1);
+    /**
+     * The loops of a chunk of the source, relative to the depth it starts at.
+     */
+    private static class Nesting {
+	/** The depth at the end of the chunk */
+	int depth;
+	/** The lowest depth within the chunk, at most 0 */
+	int min;
+	/** The offset of the first LOOPSTART after the depth was min for the last time, or -1 */
+	long openAfter;
+    }
+
+    /**
+     * Brackets checks the loops of a whole source, a chunk at a time.
+     * The nesting of a chunk tells whether a LOOPSTOP in it closes a loop
+     * that was never opened. Only then it is looked at again, to find
+     * that LOOPSTOP. The first LOOPSTART left open is the first one after
+     * the depth was 0 for the last time.
+     */
+    private static class Brackets {
+	private long depth = 0;
+	private long firstOpen = -1;
+
+	/**
+	 * Adds the nesting of the next chunk, source[offset, offset + length).
+	 *
+	 * @param position The offset of the chunk in the whole source
+	 */
+	void add(Nesting nesting, byte[] source, int offset, int length, long position) {
+	    if(depth + nesting.min < 0) {
+		throw new CompileException("Unmatched " + TokenType.LOOPSTOP + " at offset "
+					   + findUnmatched(source, offset, length, position));
+	    }
+	    if(depth + nesting.min == 0) {
+		firstOpen = nesting.openAfter;
 	    }
-	    tokens.add(token);
+	    depth += nesting.depth;
 	}
-	return tokens;
+
+	/**
+	 * Checks that all loops have been closed.
+	 */
+	void finish() {
+	    if(depth > 0) {
+		throw new CompileException(depth + " unmatched " + TokenType.LOOPSTART
+					   + ", the first at offset " + firstOpen);
+	    }
+	}
+
+	private long findUnmatched(byte[] source, int offset, int length, long position) {
+	    long current = depth;
+	    for(int index = offset; index < offset + length; index++) {
+		byte tokenClass = CLASS_TABLE[source[index] & 0xFF];
+		if(tokenClass == LOOPSTART) {
+		    current++;
+		} else if(tokenClass == LOOPSTOP && --current < 0) {
+		    return position + index - offset;
+		}
+	    }
+	    throw new IllegalStateException("No unmatched " + TokenType.LOOPSTOP);
+	}
+    }
+
+    /**
+     * Streams the whole channel through a fixed-size buffer and lexes it.
+     * No matter how big the source is, only CHUNK_SIZE bytes of it are held
+     * in memory at once.
+     *
+     * @param channel The channel to read the source code from
+     * @param tokens The TokenStream the tokens are appended to
+     */
+    public static void lex(ReadableByteChannel channel, TokenStream tokens) throws IOException {
+	byte[] chunk = new byte[CHUNK_SIZE];
+	ByteBuffer buffer = ByteBuffer.wrap(chunk);
+	Brackets brackets = new Brackets();
+	long position = 0;
+	int read;
+	while((read = channel.read(buffer)) != -1) {
+	    brackets.add(lex(chunk, 0, read, position, tokens), chunk, 0, read, position);
+	    position += read;
+	    buffer.clear();
+	}
+	brackets.finish();
+    }
+
+    /**
+     * Source lexes a channel lazily. A chunk is only read and lexed once
+     * the tokens of the last one have been used up, so no more than a chunk
+     * of the source and its tokens are held in memory at once.
+     *
+     * Usage:
+     *     Lexer.Source source = new Lexer.Source(channel);
+     *     while(source.next()) {
+     *         builder.add(source.type(), source.count());
+     *     }
+     */
+    public static class Source {
+	private ReadableByteChannel channel;
+	private byte[] chunk;
+	private ByteBuffer buffer;
+	private long position;
+	private TokenStream tokens;
+	private int index;
+	private long commands;
+	private boolean ended;
+	private Brackets brackets;
+
+	public Source(ReadableByteChannel channel) {
+	    this.channel = channel;
+	    this.chunk = new byte[CHUNK_SIZE];
+	    this.buffer = ByteBuffer.wrap(chunk);
+	    this.position = 0;
+	    this.tokens = new TokenStream(CHUNK_SIZE);
+	    this.index = -1;
+	    this.commands = 0;
+	    this.ended = false;
+	    this.brackets = new Brackets();
+	}
+
+	/**
+	 * Moves on to the next token.
+	 *
+	 * @return false once the whole source has been lexed
+	 */
+	public boolean next() throws IOException {
+	    index++;
+	    while(index >= tokens.size()) {
+		if(ended) {
+		    return false;
+		}
+		tokens.clear();
+		index = 0;
+		int read = channel.read(buffer);
+		if(read == -1) {
+		    ended = true;
+		    brackets.finish();
+		    continue;
+		}
+		brackets.add(lex(chunk, 0, read, position, tokens), chunk, 0, read, position);
+		commands += tokens.commands();
+		position += read;
+		buffer.clear();
+	    }
+	    return true;
+	}
+
+	/**
+	 * @return The TokenType of the current token
+	 */
+	public TokenType type() {
+	    return tokens.get(index);
+	}
+
+	/**
+	 * @return How often the current token is repeated
+	 */
+	public int count() {
+	    return tokens.count(index);
+	}
+
+	/**
+	 * @return The number of commands lexed so far, counting every repetition
+	 */
+	public long commands() {
+	    return commands;
+	}
+    }
+
+    /**
+     * Opens the given file and lexes it. Large files are read completely
+     * and lexed in parallel, if there are several cores.
+     *
+     * @param fileName The file to read the source code from
+     * @return The tokens of the whole file
+     */
+    public static TokenStream lexFile(String fileName) throws IOException {
+	try(FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+	    long size = channel.size();
+	    if(size > PARALLEL_THRESHOLD && size < Integer.MAX_VALUE - 8
+	       && Runtime.getRuntime().availableProcessors() > 1) {
+		return lex(Files.readAllBytes(Paths.get(fileName)));
+	    }
+	    TokenStream tokens = new TokenStream((int)Math.min(size, CHUNK_SIZE));
+	    lex(channel, tokens);
+	    return tokens;
+	}
+    }
+
+    /**
+     * @param position The offset of source[offset] in the whole source code
+     * @return The nesting of the loops in the chunk
+     */
+    private static Nesting lex(byte[] source, int offset, int length, long position, TokenStream tokens) {
+	byte[] table = CLASS_TABLE;
+	int end = offset + length;
+	int depth = 0;
+	int min = 0;
+	long openAfter = -1;
+	for(int index = offset; index < end; index++) {
+	    byte tokenClass = table[source[index] & 0xFF];
+	    if(tokenClass >= 0) {
+		tokens.add(tokenClass);
+		if(tokenClass >= LOOPSTART) {
+		    if(tokenClass == LOOPSTART) {
+			if(depth == min && openAfter == -1) {
+			    openAfter = position + index - offset;
+			}
+			depth++;
+		    } else if(--depth <= min) {
+			min = depth;
+			openAfter = -1;
+		    }
+		}
+	    } else if(tokenClass == UNKNOWN) {
+		throw new CompileException("Unknown command '" + (char)(source[index] & 0xFF)
+					   + "' at offset " + (position + index - offset));
+	    }
+	}
+	Nesting nesting = new Nesting();
+	nesting.depth = depth;
+	nesting.min = min;
+	nesting.openAfter = openAfter;
+	return nesting;
+    }
+
+    /**
+     * Builds the table that maps every byte to the ordinal of its TokenType.
+     * The patterns are only compiled once, here.
+     */
+    private static byte[] buildClassTable() {
+	byte[] table = new byte[256];
+	Arrays.fill(table, UNKNOWN);
+	for(TokenType tokenType : TOKEN_TYPES) {
+	    Pattern pattern = Pattern.compile(tokenType.pattern);
+	    for(int character = 0; character < table.length; character++) {
+		if(table[character] == UNKNOWN
+		   && pattern.matcher(String.valueOf((char)character)).matches()) {
+		    table[character] = (byte)tokenType.ordinal();
+		}
+	    }
+	}
+	table['\n'] = SKIPPED;
+	table['\r'] = SKIPPED;
+	return table;
     }
 }
@@ -0,0 +1,512 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import src.Ir;
+
+/**
+ * Optimizer rewrites the intermediate representation into an equivalent,
+ * but faster program. Every pass takes a program and returns a new one.
+ */
+public class Optimizer {
+    private Optimizer() {
+    }
+
+    /**
+     * Replaces the common loop idioms by straight-line nodes:
+     *   {D}        becomes SET(0)
+     *   {R} / {L}  becomes SCAN(1) / SCAN(-1)
+     *   {D RAAA L} becomes MULADD(3, 1) SET(0)
+     * Only innermost loops, whose bodies consist of ADD and MOVE nodes, can
+     * be replaced.
+     *
+     * @param program The program to optimize
+     * @return The optimized program
+     */
+    public static ArrayList<Ir.Node> recognizeIdioms(ArrayList<Ir.Node> program) {
+	return recognizeIdioms(program, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like recognizeIdioms, but only replaces loops that stay within reach
+     * cells of their counter.
+     */
+    public static ArrayList<Ir.Node> recognizeIdioms(ArrayList<Ir.Node> program, int reach) {
+	ArrayList<Ir.Node> result = new ArrayList<Ir.Node>(program.size());
+	for(int index = 0; index < program.size(); index++) {
+	    Ir.Node node = program.get(index);
+	    if(node.op == Ir.Op.LOOPSTART) {
+		int stop = index + 1;
+		while(stop < program.size() && (program.get(stop).op == Ir.Op.ADD
+						 || program.get(stop).op == Ir.Op.MOVE)) {
+		    stop++;
+		}
+		if(stop < program.size() && program.get(stop).op == Ir.Op.LOOPSTOP
+		   && replaceLoop(program, index + 1, stop, reach, result)) {
+		    index = stop;
+		    continue;
+		}
+	    }
+	    result.add(node);
+	}
+	return result;
+    }
+
+    /**
+     * Tracks the pointer movement of a straight-line block as an offset
+     * instead of moving the pointer. Cells are addressed relative to the
+     * pointer, e.g. "RRAAL" becomes ADD(2, 2) followed by one MOVE(1). The
+     * pointer is only moved at loop boundaries, before scans, and at the end.
+     *
+     * @param program The program to optimize
+     * @return The optimized program
+     */
+    public static ArrayList<Ir.Node> addressOffsets(ArrayList<Ir.Node> program) {
+	ArrayList<Ir.Node> result = new ArrayList<Ir.Node>(program.size());
+	Offsets offsets = new Offsets(Integer.MAX_VALUE);
+	for(Ir.Node node : program) {
+	    offsets.add(node, result);
+	}
+	offsets.finish(result);
+	return result;
+    }
+
+    /**
+     * Offsets is addressOffsets for a program that arrives a part at a time.
+     * The pointer movement that has not been applied yet is carried over from
+     * one part to the next. To keep the offsets of the nodes small, the
+     * pointer is also moved before a node would address a cell more than
+     * reach cells away.
+     */
+    public static class Offsets {
+	private int reach;
+	private long offset;
+
+	public Offsets(int reach) {
+	    this.reach = reach;
+	    this.offset = 0;
+	}
+
+	/**
+	 * Adds the node, addressed relative to the pointer, to result.
+	 */
+	public void add(Ir.Node node, ArrayList<Ir.Node> result) {
+	    switch(node.op) {
+	    case MOVE:
+		offset += node.value;
+		break;
+	    case LOOPSTART:
+	    case LOOPSTOP:
+	    case SCAN:
+		finish(result);
+		result.add(node);
+		break;
+	    default:
+		if(Math.abs(offset + node.offset) > reach || Math.abs(offset + node.source) > reach) {
+		    finish(result);
+		}
+		result.add(new Ir.Node(node.op, node.value, (int)(node.offset + offset),
+				       node.op == Ir.Op.MULADD ? (int)(node.source + offset) : node.source));
+		break;
+	    }
+	}
+
+	/**
+	 * Moves the pointer to where it would be in the original program.
+	 */
+	public void finish(ArrayList<Ir.Node> result) {
+	    if(offset != 0) {
+		result.add(new Ir.Node(Ir.Op.MOVE, (int)offset));
+		offset = 0;
+	    }
+	}
+    }
+
+    /**
+     * Tracks the values of the cells that are known at compile time: on the
+     * fresh tape every cell is zero and after a loop or a scan the current
+     * cell is. With that
+     *   loops and scans starting on a zero cell are removed,
+     *   ADD and MULADD on known cells become SET,
+     *   MULADD from a zero cell and SET of the value a cell has are removed.
+     * Values are tracked as ints, which the cells of every width are
+     * truncations of. So only a value of exactly 0 decides over a loop.
+     *
+     * @param program The program to optimize, with its offsets addressed
+     * @return The optimized program
+     */
+    public static ArrayList<Ir.Node> propagateValues(ArrayList<Ir.Node> program) {
+	ArrayList<Ir.Node> result = new ArrayList<Ir.Node>(program.size());
+	// The known cells, by their distance to where the pointer was at the
+	// last loop or scan. Cells that are known to be unknown map to null.
+	HashMap<Long, Integer> known = new HashMap<Long, Integer>();
+	// Whether all other cells are known to be zero
+	boolean fresh = true;
+	long base = 0;
+	for(int index = 0; index < program.size(); index++) {
+	    Ir.Node node = program.get(index);
+	    long cell = base + node.offset;
+	    Integer value = known.containsKey(cell) ? known.get(cell) : fresh ? Integer.valueOf(0) : null;
+	    switch(node.op) {
+	    case ADD:
+		if(value != null) {
+		    result.add(new Ir.Node(Ir.Op.SET, value + node.value, node.offset));
+		    known.put(cell, value + node.value);
+		} else {
+		    result.add(node);
+		}
+		break;
+	    case SET:
+		if(value == null || value != node.value) {
+		    result.add(node);
+		    known.put(cell, node.value);
+		}
+		break;
+	    case MULADD:
+		long source = base + node.source;
+		Integer factor = known.containsKey(source) ? known.get(source) : fresh ? Integer.valueOf(0) : null;
+		if(factor != null && factor == 0) {
+		    break;
+		}
+		if(factor != null && value != null) {
+		    result.add(new Ir.Node(Ir.Op.SET, value + factor * node.value, node.offset));
+		    known.put(cell, value + factor * node.value);
+		} else if(factor != null) {
+		    result.add(new Ir.Node(Ir.Op.ADD, factor * node.value, node.offset));
+		} else {
+		    result.add(node);
+		    known.put(cell, null);
+		}
+		break;
+	    case INPUT:
+		result.add(node);
+		// Unknown cells are kept as null, the fresh tape would make them zero
+		known.put(cell, null);
+		break;
+	    case MOVE:
+		result.add(node);
+		base += node.value;
+		break;
+	    case LOOPSTART:
+		if(value != null && value == 0) {
+		    // The loop is never entered, skip to its LOOPSTOP
+		    for(int depth = 1; depth > 0; ) {
+			Ir.Op op = program.get(++index).op;
+			depth += op == Ir.Op.LOOPSTART ? 1 : op == Ir.Op.LOOPSTOP ? -1 : 0;
+		    }
+		    break;
+		}
+		result.add(node);
+		known.clear();
+		fresh = false;
+		base = 0;
+		break;
+	    case LOOPSTOP:
+	    case SCAN:
+		if(node.op == Ir.Op.SCAN && value != null && value == 0) {
+		    break;
+		}
+		result.add(node);
+		known.clear();
+		known.put(0L, 0);
+		fresh = false;
+		base = 0;
+		break;
+	    default:
+		result.add(node);
+		break;
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * Removes the stores to cells that are overwritten before they are read
+     * and, at the end of the program, the stores that are never read and
+     * moves that are never used. Only straight-line code between loops is
+     * looked at.
+     *
+     * @param program The program to optimize, with its offsets addressed
+     * @return The optimized program
+     */
+    public static ArrayList<Ir.Node> removeDeadStores(ArrayList<Ir.Node> program) {
+	// The cell every node addresses, relative to the start of its block
+	long[] cells = new long[program.size()];
+	long base = 0;
+	for(int index = 0; index < program.size(); index++) {
+	    Ir.Node node = program.get(index);
+	    cells[index] = base + node.offset;
+	    if(node.op == Ir.Op.MOVE) {
+		base += node.value;
+	    } else if(node.op == Ir.Op.LOOPSTART || node.op == Ir.Op.LOOPSTOP || node.op == Ir.Op.SCAN) {
+		base = 0;
+	    }
+	}
+
+	// Walking backwards, a cell is dead if it is written before it is
+	// read again. After the program every cell is.
+	boolean[] removed = new boolean[program.size()];
+	boolean dead = true;
+	HashSet<Long> exceptions = new HashSet<Long>();
+	boolean end = true;
+	for(int index = program.size() - 1; index >= 0; index--) {
+	    Ir.Node node = program.get(index);
+	    long cell = cells[index];
+	    boolean written = dead != exceptions.contains(cell);
+	    switch(node.op) {
+	    case SET:
+		if(written) {
+		    removed[index] = true;
+		} else {
+		    mark(exceptions, dead, cell, true);
+		}
+		break;
+	    case ADD:
+	    case MULADD:
+		if(written) {
+		    removed[index] = true;
+		    break;
+		}
+		mark(exceptions, dead, cell, false);
+		if(node.op == Ir.Op.MULADD) {
+		    mark(exceptions, dead, cell - node.offset + node.source, false);
+		}
+		break;
+	    case INPUT:
+		mark(exceptions, dead, cell, true);
+		break;
+	    case OUTPUT:
+		mark(exceptions, dead, cell, false);
+		break;
+	    case MOVE:
+		removed[index] = end;
+		break;
+	    default:
+		dead = false;
+		exceptions.clear();
+		break;
+	    }
+	    end = end && removed[index];
+	}
+
+	ArrayList<Ir.Node> result = new ArrayList<Ir.Node>(program.size());
+	for(int index = 0; index < program.size(); index++) {
+	    if(!removed[index]) {
+		result.add(program.get(index));
+	    }
+	}
+	return result;
+    }
+
+    private static void mark(HashSet<Long> exceptions, boolean dead, long cell, boolean written) {
+	if(written == dead) {
+	    exceptions.remove(cell);
+	} else {
+	    exceptions.add(cell);
+	}
+    }
+
+    /**
+     * Tries to replace the loop with the body program[start, stop).
+     *
+     * @return true if the loop was replaced and its replacement added to result
+     */
+    private static boolean replaceLoop(ArrayList<Ir.Node> program, int start, int stop,
+				       int reach, ArrayList<Ir.Node> result) {
+	if(stop - start == 1) {
+	    Ir.Node node = program.get(start);
+	    // An odd step reaches zero from every value, as the cells wrap around
+	    if(node.op == Ir.Op.ADD && node.value % 2 != 0) {
+		result.add(new Ir.Node(Ir.Op.SET, 0));
+		return true;
+	    }
+	    if(node.op == Ir.Op.MOVE) {
+		result.add(new Ir.Node(Ir.Op.SCAN, node.value));
+		return true;
+	    }
+	    return false;
+	}
+
+	// A balanced loop, that decreases its counter by one per iteration,
+	// adds counter * factor to every other cell it touches
+	TreeMap<Integer, Integer> factors = new TreeMap<Integer, Integer>();
+	int offset = 0;
+	for(int index = start; index < stop; index++) {
+	    Ir.Node node = program.get(index);
+	    if(node.op == Ir.Op.MOVE) {
+		offset += node.value;
+	    } else {
+		Integer factor = factors.get(offset);
+		factors.put(offset, (factor == null ? 0 : factor) + node.value);
+	    }
+	}
+	Integer counter = factors.remove(0);
+	if(offset != 0 || counter == null || counter != -1) {
+	    return false;
+	}
+	if(!factors.isEmpty() && Math.max(-(long)factors.firstKey(), factors.lastKey()) > reach) {
+	    return false;
+	}
+	for(Map.Entry<Integer, Integer> entry : factors.entrySet()) {
+	    if(entry.getValue() != 0) {
+		result.add(new Ir.Node(Ir.Op.MULADD, entry.getValue(), entry.getKey()));
+	    }
+	}
+	result.add(new Ir.Node(Ir.Op.SET, 0));
+	return true;
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in Optimizer.java");
+	testRecognizeIdioms();
+	testAddressOffsets();
+	testPropagateValues();
+	testRemoveDeadStores();
+
+	System.out.println("------\nDone.");
+    }
+
+    /**
+     * Builds a source with its idioms recognized and its offsets addressed,
+     * the program most tests of the backends start from.
+     */
+    static ArrayList<Ir.Node> optimize(String source) {
+	return addressOffsets(recognizeIdioms(Ir.build(source)));
+    }
+
+    private static void testRecognizeIdioms() {
+	System.out.println("Starting to test recognizeIdioms");
+	ArrayList<Ir.Node> nodes = recognizeIdioms(Ir.build("A{D}{AAA}{AA}"));
+	assert nodes.size() == 6 : nodes;
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.SET, 0));
+	assert nodes.get(2).equals(new Ir.Node(Ir.Op.SET, 0));
+	assert nodes.get(3).equals(new Ir.Node(Ir.Op.LOOPSTART, 0));
+
+	nodes = recognizeIdioms(Ir.build("{R}{LL}"));
+	assert nodes.size() == 2 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.SCAN, 1));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.SCAN, -2));
+
+	nodes = recognizeIdioms(Ir.build("{DRAAALLDR}"));
+	assert nodes.size() == 3 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.MULADD, -1, -1));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.MULADD, 3, 1));
+	assert nodes.get(2).equals(new Ir.Node(Ir.Op.SET, 0));
+
+	// Unbalanced loops and loops that count in steps of two are kept
+	assert recognizeIdioms(Ir.build("{DRAA}")).size() == 5;
+	assert recognizeIdioms(Ir.build("{DDRAL}")).size() == 6;
+	assert recognizeIdioms(Ir.build("{D{R}}")).size() == 4;
+	// So are loops reaching too far
+	assert recognizeIdioms(Ir.build("{DRRRALLL}"), 2).size() == 6;
+	assert recognizeIdioms(Ir.build("{DRRALL}"), 2).size() == 2;
+	System.out.println("Done.");
+    }
+
+    private static void testPropagateValues() {
+	System.out.println("Starting to test propagateValues");
+	// Loops on the fresh tape and after other loops are never entered
+	ArrayList<Ir.Node> nodes = propagateValues(optimize("{O}AAA{R{O}D}{OO}RO"));
+	assert nodes.size() == 10 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.SET, 3));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.LOOPSTART, 0));
+	assert nodes.get(6).equals(new Ir.Node(Ir.Op.SET, -1));
+	assert nodes.get(7).equals(new Ir.Node(Ir.Op.LOOPSTOP, 0));
+	assert nodes.get(8).equals(new Ir.Node(Ir.Op.OUTPUT, 1, 1));
+
+	// Known sources turn MULADD into SET and ADD
+	nodes = propagateValues(optimize("AA{DRAAARALL}RRO{DRAL}I{DRAAL}O"));
+	assert nodes.size() == 12 : nodes;
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.SET, 6, 1));
+	assert nodes.get(2).equals(new Ir.Node(Ir.Op.SET, 2, 2));
+	assert nodes.get(3).equals(new Ir.Node(Ir.Op.SET, 0));
+	assert nodes.get(5).equals(new Ir.Node(Ir.Op.SET, 2, 3));
+	assert nodes.get(8).equals(new Ir.Node(Ir.Op.MULADD, 2, 3, 2));
+
+	// Input leaves the rest of the fresh tape zero
+	nodes = propagateValues(optimize("IRAO{D}ALI{D}"));
+	assert nodes.size() == 7 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.INPUT, 1));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.SET, 1, 1));
+	assert nodes.get(3).equals(new Ir.Node(Ir.Op.SET, 0, 1));
+	assert nodes.get(4).equals(new Ir.Node(Ir.Op.SET, 1, 1));
+	assert nodes.get(6).equals(new Ir.Node(Ir.Op.SET, 0));
+
+	// Stores of the value a cell already has and scans from a zero cell vanish
+	nodes = propagateValues(optimize("{D}{R}O"));
+	assert nodes.size() == 1 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.OUTPUT, 1));
+
+	// Only zero is known to stop a loop at every cell width
+	nodes = propagateValues(Ir.build("A".repeat(256) + "{O}"));
+	assert nodes.size() == 4 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.SET, 256));
+	System.out.println("Done.");
+    }
+
+    private static void testRemoveDeadStores() {
+	System.out.println("Starting to test removeDeadStores");
+	// Stores overwritten before they are read and at the end of the program
+	ArrayList<Ir.Node> nodes = removeDeadStores(optimize("AORAA{DRAL}LIRAAAOLDRR"));
+	assert nodes.size() == 6 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.ADD, 1));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.OUTPUT, 1));
+	assert nodes.get(2).equals(new Ir.Node(Ir.Op.SET, 0, 1));
+	assert nodes.get(3).equals(new Ir.Node(Ir.Op.INPUT, 1));
+	assert nodes.get(4).equals(new Ir.Node(Ir.Op.ADD, 3, 1));
+	assert nodes.get(5).equals(new Ir.Node(Ir.Op.OUTPUT, 1, 1));
+
+	// Input is kept even if its cell is overwritten, the stores before it are not
+	nodes = removeDeadStores(optimize("AA{DRAL}RI{D}O"));
+	assert nodes.size() == 3 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.INPUT, 1, 1));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.SET, 0, 1));
+
+	// Loops read every cell, so nothing before them is dead
+	nodes = removeDeadStores(addressOffsets(Ir.build("AA{RAL}RD{O}")));
+	assert nodes.size() == 9 : nodes;
+	System.out.println("Done.");
+    }
+
+    private static void testAddressOffsets() {
+	System.out.println("Starting to test addressOffsets");
+	ArrayList<Ir.Node> nodes = optimize("RRAALO{DRAL}LLD");
+	assert nodes.size() == 6 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.ADD, 2, 2));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.OUTPUT, 1, 1));
+	assert nodes.get(2).equals(new Ir.Node(Ir.Op.MULADD, 1, 2, 1));
+	assert nodes.get(3).equals(new Ir.Node(Ir.Op.SET, 0, 1));
+	assert nodes.get(4).equals(new Ir.Node(Ir.Op.ADD, -1, -1));
+	assert nodes.get(5).equals(new Ir.Node(Ir.Op.MOVE, -1));
+
+	nodes = addressOffsets(Ir.build("R{RA}A"));
+	assert nodes.size() == 6 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.MOVE, 1));
+	assert nodes.get(2).equals(new Ir.Node(Ir.Op.ADD, 1, 1));
+	assert nodes.get(3).equals(new Ir.Node(Ir.Op.MOVE, 1));
+	assert nodes.get(5).equals(new Ir.Node(Ir.Op.ADD, 1));
+
+	// A program split into parts, with offsets limited to 2
+	Offsets offsets = new Offsets(2);
+	nodes = new ArrayList<Ir.Node>();
+	for(Ir.Node node : recognizeIdioms(Ir.build("RA{DRAL}R"))) {
+	    offsets.add(node, nodes);
+	}
+	for(Ir.Node node : Ir.build("RAO")) {
+	    offsets.add(node, nodes);
+	}
+	offsets.finish(nodes);
+	assert nodes.size() == 6 : nodes;
+	assert nodes.get(0).equals(new Ir.Node(Ir.Op.ADD, 1, 1));
+	assert nodes.get(1).equals(new Ir.Node(Ir.Op.MULADD, 1, 2, 1));
+	assert nodes.get(2).equals(new Ir.Node(Ir.Op.SET, 0, 1));
+	assert nodes.get(3).equals(new Ir.Node(Ir.Op.MOVE, 3));
+	assert nodes.get(4).equals(new Ir.Node(Ir.Op.ADD, 1));
+	assert nodes.get(5).equals(new Ir.Node(Ir.Op.OUTPUT, 1));
+	System.out.println("Done.");
+    }
+}
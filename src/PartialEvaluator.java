@@ -0,0 +1,297 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import src.Ir;
+
+/**
+ * PartialEvaluator runs the start of a program inside the compiler. Many
+ * programs never read input, or only after printing something: they spend
+ * their time adding up constants and printing them. Everything up to the
+ * first INPUT is run here, so the compiled program starts with the output
+ * and the tape that part left behind and only runs the rest, the residual.
+ *
+ * The program is evaluated a top-level node at a time, a whole loop being
+ * a single node. A node that reads input, runs out of the step budget,
+ * prints too much or leaves the tape stops the evaluation and is, with all
+ * nodes after it, left to the residual. Whatever it changed is undone.
+ */
+public class PartialEvaluator {
+    /** The number of nodes that are run at most by default */
+    public static final long DEFAULT_STEP_BUDGET = 1L << 24;
+    /** The number of cells, from the cell the program starts at, that can be used */
+    private static final int MAX_CELLS = 1 << 20;
+    /** The number of bytes that can be printed */
+    private static final int MAX_OUTPUT = 1 << 20;
+
+    /**
+     * The state the evaluated part of a program left behind.
+     */
+    public static class Result {
+	/** The output so far */
+	public byte[] output;
+	/** The cells, from the cell the program starts at. Any further cells are zero. */
+	public int[] cells;
+	/** The rest of the program, which starts by moving the pointer to where it was left */
+	public ArrayList<Ir.Node> residual;
+	/** The number of nodes of the program that were evaluated */
+	public int evaluated;
+    }
+
+    /** Thrown when a node cannot be evaluated */
+    private static class Stop extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	Stop() {
+	    super(null, null, false, false);
+	}
+    }
+
+    private ArrayList<Ir.Node> program;
+    private int[] matches;
+    private int mask;
+    private long budget;
+
+    private int[] tape;
+    private int pointer;
+    private byte[] output;
+    private int outputLength;
+
+    // The cells a top-level node changed, with their old values, to undo it
+    private int[] stamps;
+    private int stamp;
+    private int[] undo;
+    private int undoLength;
+
+    private PartialEvaluator(ArrayList<Ir.Node> program, int cellBits, long budget) {
+	this.program = program;
+	this.matches = matches(program);
+	this.mask = cellBits == 32 ? -1 : (1 << cellBits) - 1;
+	this.budget = budget;
+	this.tape = new int[1024];
+	this.pointer = 0;
+	this.output = new byte[1024];
+	this.outputLength = 0;
+	this.stamps = new int[tape.length];
+	this.stamp = 0;
+	this.undo = new int[64];
+	this.undoLength = 0;
+    }
+
+    /**
+     * Evaluates the program up to its first INPUT, or as far as the budget goes.
+     *
+     * @param program The program, with its offsets addressed
+     * @param cellBits The width of a cell: 8, 16 or 32
+     * @param budget The number of nodes that may be run
+     * @return The output and tape of the evaluated part and the residual program
+     */
+    public static Result evaluate(ArrayList<Ir.Node> program, int cellBits, long budget) {
+	PartialEvaluator evaluator = new PartialEvaluator(program, cellBits, budget);
+	int evaluated = evaluator.run();
+
+	Result result = new Result();
+	result.output = Arrays.copyOf(evaluator.output, evaluator.outputLength);
+	int last = evaluator.tape.length - 1;
+	while(last >= 0 && evaluator.tape[last] == 0) {
+	    last--;
+	}
+	result.cells = Arrays.copyOf(evaluator.tape, last + 1);
+	result.residual = new ArrayList<Ir.Node>(program.size() - evaluated + 1);
+	if(evaluator.pointer != 0) {
+	    result.residual.add(new Ir.Node(Ir.Op.MOVE, evaluator.pointer));
+	}
+	result.residual.addAll(program.subList(evaluated, program.size()));
+	result.evaluated = evaluated;
+	return result;
+    }
+
+    /**
+     * @return The number of nodes that were evaluated
+     */
+    private int run() {
+	int[] inputs = new int[program.size() + 1];
+	for(int index = 0; index < program.size(); index++) {
+	    inputs[index + 1] = inputs[index] + (program.get(index).op == Ir.Op.INPUT ? 1 : 0);
+	}
+	int index = 0;
+	while(index < program.size()) {
+	    int end = program.get(index).op == Ir.Op.LOOPSTART ? matches[index] + 1 : index + 1;
+	    if(inputs[end] != inputs[index]) {
+		break;
+	    }
+	    int oldPointer = pointer;
+	    int oldOutputLength = outputLength;
+	    stamp++;
+	    undoLength = 0;
+	    try {
+		run(index, end);
+	    } catch(Stop stop) {
+		for(int entry = undoLength - 2; entry >= 0; entry -= 2) {
+		    tape[undo[entry]] = undo[entry + 1];
+		}
+		pointer = oldPointer;
+		outputLength = oldOutputLength;
+		break;
+	    }
+	    index = end;
+	}
+	return index;
+    }
+
+    /**
+     * Runs program[start, end), which contains no INPUT.
+     */
+    private void run(int start, int end) {
+	for(int index = start; index < end; index++) {
+	    if(--budget < 0) {
+		throw new Stop();
+	    }
+	    Ir.Node node = program.get(index);
+	    switch(node.op) {
+	    case ADD:
+		set(node.offset, get(node.offset) + node.value);
+		break;
+	    case MOVE:
+		pointer = cell(node.value);
+		break;
+	    case OUTPUT:
+		print((byte)get(node.offset), node.value);
+		break;
+	    case LOOPSTART:
+		if(get(0) == 0) {
+		    index = matches[index];
+		}
+		break;
+	    case LOOPSTOP:
+		if(get(0) != 0) {
+		    index = matches[index];
+		}
+		break;
+	    case SET:
+		set(node.offset, node.value);
+		break;
+	    case MULADD:
+		set(node.offset, get(node.offset) + get(node.source) * node.value);
+		break;
+	    case SCAN:
+		while(get(0) != 0) {
+		    if(--budget < 0) {
+			throw new Stop();
+		    }
+		    pointer = cell(node.value);
+		}
+		break;
+	    default:
+		throw new Stop();
+	    }
+	}
+    }
+
+    /**
+     * @return The index of the cell at offset from the pointer
+     */
+    private int cell(int offset) {
+	long cell = (long)pointer + offset;
+	if(cell < 0 || cell >= MAX_CELLS) {
+	    throw new Stop();
+	}
+	return (int)cell;
+    }
+
+    private int get(int offset) {
+	int cell = cell(offset);
+	return cell < tape.length ? tape[cell] : 0;
+    }
+
+    private void set(int offset, int value) {
+	int cell = cell(offset);
+	if(cell >= tape.length) {
+	    int capacity = Math.min(Math.max(tape.length * 2, cell + 1), MAX_CELLS);
+	    tape = Arrays.copyOf(tape, capacity);
+	    stamps = Arrays.copyOf(stamps, capacity);
+	}
+	// Only the first change of a cell has to be undone
+	if(stamps[cell] != stamp) {
+	    stamps[cell] = stamp;
+	    if(undoLength + 2 > undo.length) {
+		undo = Arrays.copyOf(undo, undo.length * 2);
+	    }
+	    undo[undoLength++] = cell;
+	    undo[undoLength++] = tape[cell];
+	}
+	tape[cell] = value & mask;
+    }
+
+    private void print(byte character, int count) {
+	if(count > MAX_OUTPUT - outputLength) {
+	    throw new Stop();
+	}
+	if(outputLength + count > output.length) {
+	    output = Arrays.copyOf(output, Math.min(Math.max(output.length * 2, outputLength + count), MAX_OUTPUT));
+	}
+	Arrays.fill(output, outputLength, outputLength + count, character);
+	outputLength += count;
+    }
+
+    /**
+     * @return For every loop node, the index of the node that closes or opens it
+     */
+    private static int[] matches(ArrayList<Ir.Node> program) {
+	int[] matches = new int[program.size()];
+	int[] open = new int[program.size()];
+	int depth = 0;
+	for(int index = 0; index < program.size(); index++) {
+	    if(program.get(index).op == Ir.Op.LOOPSTART) {
+		open[depth++] = index;
+	    } else if(program.get(index).op == Ir.Op.LOOPSTOP) {
+		int start = open[--depth];
+		matches[start] = index;
+		matches[index] = start;
+	    }
+	}
+	return matches;
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in PartialEvaluator.java");
+	testEvaluate();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testEvaluate() {
+	System.out.println("Starting to test evaluate");
+	// "A" = 65: 8 * 8 + 1
+	Result result = evaluate(Optimizer.optimize("AAAAAAAA{DRAAAAAAAAL}RAOOR"), 8, DEFAULT_STEP_BUDGET);
+	assert new String(result.output).equals("AA") : new String(result.output);
+	assert result.residual.size() == 1 && result.residual.get(0).equals(new Ir.Node(Ir.Op.MOVE, 2));
+	assert result.cells.length == 2 && result.cells[0] == 0 && result.cells[1] == 65;
+
+	// The loop reading input and everything after it are left
+	ArrayList<Ir.Node> program = Optimizer.optimize("AAO{DRIL}RO");
+	result = evaluate(program, 8, DEFAULT_STEP_BUDGET);
+	assert new String(result.output).equals("\u0002");
+	assert result.evaluated == 2 : result.evaluated;
+	assert result.residual.equals(program.subList(2, program.size())) : result.residual;
+
+	// Cells wrap around at their width
+	result = evaluate(Optimizer.optimize("D"), 8, DEFAULT_STEP_BUDGET);
+	assert result.cells[0] == 255;
+	result = evaluate(Optimizer.optimize("D"), 16, DEFAULT_STEP_BUDGET);
+	assert result.cells[0] == 65535;
+
+	// A loop that runs out of budget is undone completely
+	program = Optimizer.optimize("AAORAA{RAALA}");
+	result = evaluate(program, 8, 20);
+	assert Arrays.equals(result.cells, new int[] {2, 2}) : Arrays.toString(result.cells);
+	assert result.residual.get(0).equals(new Ir.Node(Ir.Op.MOVE, 1)) : result.residual;
+	assert result.residual.get(1).op == Ir.Op.LOOPSTART : result.residual;
+
+	// So is a node that leaves the tape on the left
+	result = evaluate(Optimizer.optimize("AOLA"), 8, DEFAULT_STEP_BUDGET);
+	assert result.output.length == 1 && result.evaluated == 2;
+	System.out.println("Done.");
+    }
+}
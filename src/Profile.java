@@ -0,0 +1,216 @@
+package src;
+
+import java.util.ArrayList;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import src.Ir;
+import src.CompileException;
+
+/**
+ * Profile counts how often every loop of a program was entered and how
+ * many iterations it ran in total, during a run of the Interpreter. The
+ * loops are numbered in the order of their starts in the optimized
+ * program, so a profile only fits the program it was made from.
+ *
+ * Loops that take a big share of all iterations are hot, loops that were
+ * never entered are cold. The backends spend their effort on the hot ones.
+ *
+ * A profile is stored as text: a header, the number of loops and then a
+ * line "entries iterations" per loop.
+ */
+public class Profile {
+    private static final String HEADER = "christal-profile 1";
+    /** A hot loop runs at least 1 / HOT_SHARE of all iterations */
+    public static final int HOT_SHARE = 100;
+    /** and at least this many iterations, so short runs have no hot loops */
+    public static final long MIN_HOT_ITERATIONS = 1000;
+
+    // Per loop. The Interpreter counts into them directly.
+    final long[] entries;
+    final long[] iterations;
+    private long total = -1;
+
+    /**
+     * @param loops The number of loops of the program
+     */
+    public Profile(int loops) {
+	this.entries = new long[loops];
+	this.iterations = new long[loops];
+    }
+
+    /**
+     * @return The number of loops in the profile
+     */
+    public int loops() {
+	return entries.length;
+    }
+
+    public long entries(int loop) {
+	return entries[loop];
+    }
+
+    public long iterations(int loop) {
+	return iterations[loop];
+    }
+
+    /**
+     * @return Whether the loop ran a big share of all iterations
+     */
+    public boolean hot(int loop) {
+	return iterations[loop] >= MIN_HOT_ITERATIONS && iterations[loop] >= total() / HOT_SHARE;
+    }
+
+    /**
+     * @return Whether the loop was never entered
+     */
+    public boolean cold(int loop) {
+	return entries[loop] == 0;
+    }
+
+    /**
+     * The profile of the last loops only, for programs whose start was
+     * evaluated by the PartialEvaluator. Hot loops stay hot.
+     *
+     * @param loops The number of loops at the end of the program
+     */
+    public Profile tail(int loops) {
+	Profile tail = new Profile(loops);
+	int first = loops() - loops;
+	System.arraycopy(entries, first, tail.entries, 0, loops);
+	System.arraycopy(iterations, first, tail.iterations, 0, loops);
+	tail.total = total();
+	return tail;
+    }
+
+    /**
+     * @return The iterations of all loops
+     */
+    private long total() {
+	if(total < 0) {
+	    total = 0;
+	    for(long count : iterations) {
+		total += count;
+	    }
+	}
+	return total;
+    }
+
+    /**
+     * @return A character per loop, 'h' for hot, 'c' for cold and '.' for
+     * the others. That is all the backends see of the profile.
+     */
+    public String describe() {
+	StringBuilder description = new StringBuilder(loops());
+	for(int loop = 0; loop < loops(); loop++) {
+	    description.append(hot(loop) ? 'h' : cold(loop) ? 'c' : '.');
+	}
+	return description.toString();
+    }
+
+    /**
+     * @return The number of loops in the program
+     */
+    public static int countLoops(ArrayList<Ir.Node> program) {
+	int loops = 0;
+	for(Ir.Node node : program) {
+	    if(node.op == Ir.Op.LOOPSTART) {
+		loops++;
+	    }
+	}
+	return loops;
+    }
+
+    public void write(String fileName) throws CompileException {
+	try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8)) {
+	    writer.write(HEADER + "\n");
+	    writer.write(loops() + "\n");
+	    for(int loop = 0; loop < loops(); loop++) {
+		writer.write(entries[loop] + " " + iterations[loop] + "\n");
+	    }
+	} catch(IOException ex) {
+	    throw new CompileException("Error writing the profile " + fileName, ex);
+	}
+    }
+
+    public static Profile read(String fileName) throws CompileException {
+	try(BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+	    if(!HEADER.equals(reader.readLine())) {
+		throw new CompileException(fileName + " is not a profile");
+	    }
+	    Profile profile = new Profile(Integer.parseInt(reader.readLine().trim()));
+	    for(int loop = 0; loop < profile.loops(); loop++) {
+		String[] counts = reader.readLine().trim().split(" +");
+		profile.entries[loop] = Long.parseLong(counts[0]);
+		profile.iterations[loop] = Long.parseLong(counts[1]);
+	    }
+	    return profile;
+	} catch(IOException ex) {
+	    throw new CompileException("Error reading the profile " + fileName, ex);
+	} catch(NullPointerException | NumberFormatException | IndexOutOfBoundsException ex) {
+	    throw new CompileException("The profile " + fileName + " is damaged");
+	}
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in Profile.java");
+	testClassify();
+	testReadWrite();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testClassify() {
+	System.out.println("Starting to test hot and cold loops");
+	Profile profile = new Profile(4);
+	profile.entries[0] = 1;
+	profile.iterations[0] = 5;
+	profile.entries[1] = 1;
+	profile.iterations[1] = 100000;
+	profile.entries[2] = 100;
+	profile.iterations[2] = 2000;
+	assert !profile.hot(0) && !profile.cold(0);
+	assert profile.hot(1) && profile.hot(2);
+	assert profile.cold(3) && !profile.hot(3);
+	assert profile.describe().equals(".hhc") : profile.describe();
+
+	// The share of the last loops is still measured against all of them
+	profile.iterations[0] = 100000000;
+	profile.total = -1;
+	assert profile.describe().equals("h..c") : profile.describe();
+	assert profile.tail(2).describe().equals(".c") : profile.tail(2).describe();
+	System.out.println("Done.");
+    }
+
+    private static void testReadWrite() {
+	System.out.println("Starting to test read and write");
+	try {
+	    Path file = Files.createTempFile("chris-profile-test", ".prof");
+	    Profile profile = new Profile(2);
+	    profile.entries[0] = 3;
+	    profile.iterations[0] = 1L << 40;
+	    profile.write(file.toString());
+	    Profile read = read(file.toString());
+	    assert read.loops() == 2;
+	    assert read.entries(0) == 3 && read.iterations(0) == 1L << 40;
+	    assert read.entries(1) == 0 && read.iterations(1) == 0;
+
+	    Files.write(file, (HEADER + "\n3\n1 1\n").getBytes());
+	    try {
+		read(file.toString());
+		assert false : "A truncated profile was read";
+	    } catch(CompileException ex) {
+		assert ex.getMessage().endsWith("is damaged") : ex.getMessage();
+	    }
+	    Files.delete(file);
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+}
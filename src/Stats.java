@@ -0,0 +1,211 @@
+package src;
+
+import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Stats records the wall time and the memory allocated by every phase of
+ * compiling a file, e.g. lexing or writing the program. Allocations are
+ * counted per thread, so files compiled at once do not disturb each other,
+ * as long as every phase of a file runs on the same thread.
+ *
+ * Usage:
+ *     Stats stats = new Stats("hello.chris");
+ *     stats.begin();
+ *     Lexer.lex(source, 0, source.length, tokens);
+ *     stats.end("lex").tokens = tokens.commands();
+ *     System.out.println(stats.toText());
+ */
+public class Stats {
+    /**
+     * A single phase. Counters that do not apply to it are -1.
+     */
+    public static class Phase {
+	public String name;
+	public long nanos;
+	public long allocatedBytes;
+	// The commands the phase went through
+	public long tokens = -1;
+	// The bytes the phase read or wrote
+	public long bytes = -1;
+
+	/**
+	 * @return The tokens per second, or -1 if the phase has no tokens
+	 */
+	public long tokensPerSecond() {
+	    if(tokens < 0) {
+		return -1;
+	    }
+	    return (long)(tokens * 1e9 / Math.max(nanos, 1));
+	}
+    }
+
+    // Null if the JVM cannot count allocations
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private String fileName;
+    private ArrayList<Phase> phases;
+    private long startNanos;
+    private long startAllocated;
+
+    public Stats(String fileName) {
+	this.fileName = fileName;
+	this.phases = new ArrayList<Phase>();
+    }
+
+    /**
+     * Starts the next phase.
+     */
+    public void begin() {
+	startAllocated = allocatedBytes();
+	startNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends the phase started by the last call to begin.
+     *
+     * @param name The name the phase is reported as
+     * @return The phase, to add tokens or bytes to
+     */
+    public Phase end(String name) {
+	long nanos = System.nanoTime() - startNanos;
+	Phase phase = new Phase();
+	phase.name = name;
+	phase.nanos = nanos;
+	long allocated = allocatedBytes();
+	phase.allocatedBytes = allocated < 0 ? -1 : allocated - startAllocated;
+	phases.add(phase);
+	return phase;
+    }
+
+    public ArrayList<Phase> getPhases() {
+	return phases;
+    }
+
+    /**
+     * @return The report as readable text, a line per phase
+     */
+    public String toText() {
+	StringBuilder text = new StringBuilder("Stats for " + fileName + ":\n");
+	long nanos = 0;
+	long allocated = 0;
+	for(Phase phase : phases) {
+	    text.append(String.format("    %-10s %10.3f ms", phase.name, phase.nanos / 1e6));
+	    if(phase.allocatedBytes >= 0) {
+		text.append(String.format(" %12d bytes allocated", phase.allocatedBytes));
+	    }
+	    if(phase.tokens >= 0) {
+		text.append(String.format(", %d tokens (%d tokens/s)", phase.tokens, phase.tokensPerSecond()));
+	    }
+	    if(phase.bytes >= 0) {
+		text.append(String.format(", %d bytes", phase.bytes));
+	    }
+	    text.append('\n');
+	    nanos += phase.nanos;
+	    allocated += phase.allocatedBytes;
+	}
+	text.append(String.format("    %-10s %10.3f ms", "total", nanos / 1e6));
+	if(THREADS != null) {
+	    text.append(String.format(" %12d bytes allocated", allocated));
+	}
+	return text.toString();
+    }
+
+    /**
+     * @return The report as a single line of JSON
+     */
+    public String toJson() {
+	StringBuilder json = new StringBuilder("{\"file\":");
+	quote(fileName, json);
+	json.append(",\"phases\":[");
+	for(int index = 0; index < phases.size(); index++) {
+	    Phase phase = phases.get(index);
+	    if(index > 0) {
+		json.append(',');
+	    }
+	    json.append("{\"name\":");
+	    quote(phase.name, json);
+	    json.append(",\"nanos\":").append(phase.nanos);
+	    json.append(",\"allocatedBytes\":").append(phase.allocatedBytes);
+	    if(phase.tokens >= 0) {
+		json.append(",\"tokens\":").append(phase.tokens);
+		json.append(",\"tokensPerSecond\":").append(phase.tokensPerSecond());
+	    }
+	    if(phase.bytes >= 0) {
+		json.append(",\"bytes\":").append(phase.bytes);
+	    }
+	    json.append('}');
+	}
+	return json.append("]}").toString();
+    }
+
+    private static void quote(String string, StringBuilder json) {
+	json.append('"');
+	for(int index = 0; index < string.length(); index++) {
+	    char character = string.charAt(index);
+	    if(character == '"' || character == '\\') {
+		json.append('\\').append(character);
+	    } else if(character < 0x20) {
+		json.append(String.format("\\u%04x", (int)character));
+	    } else {
+		json.append(character);
+	    }
+	}
+	json.append('"');
+    }
+
+    private static long allocatedBytes() {
+	if(THREADS == null) {
+	    return -1;
+	}
+	return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+	if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+	    return null;
+	}
+	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	if(!threads.isThreadAllocatedMemorySupported()) {
+	    return null;
+	}
+	threads.setThreadAllocatedMemoryEnabled(true);
+	return threads;
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in Stats.java");
+	testStats();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testStats() {
+	System.out.println("Starting to test stats");
+	Stats stats = new Stats("a \"quoted\"\\name");
+	stats.begin();
+	byte[] source = "AAAARRO{D}".getBytes();
+	TokenStream tokens = new TokenStream();
+	Lexer.lex(source, 0, source.length, tokens);
+	stats.end("lex").tokens = tokens.commands();
+	stats.begin();
+	byte[] copy = new byte[1 << 20];
+	stats.end("copy").bytes = copy.length;
+
+	assert stats.getPhases().size() == 2;
+	assert stats.getPhases().get(0).tokens == 10;
+	assert stats.getPhases().get(0).tokensPerSecond() > 0;
+	if(THREADS != null) {
+	    assert stats.getPhases().get(1).allocatedBytes >= 1 << 20 : stats.getPhases().get(1).allocatedBytes;
+	}
+	String text = stats.toText();
+	assert text.startsWith("Stats for a \"quoted\"\\name:\n    lex ") : text;
+	assert text.contains(", 10 tokens (") : text;
+	assert text.contains(", 1048576 bytes\n    total ") : text;
+	String json = stats.toJson();
+	assert json.startsWith("{\"file\":\"a \\\"quoted\\\"\\\\name\",\"phases\":[{\"name\":\"lex\",\"nanos\":") : json;
+	assert json.contains(",\"tokens\":10,\"tokensPerSecond\":") : json;
+	assert json.contains(",\"bytes\":1048576}]}") : json;
+	System.out.println("Done.");
+    }
+}
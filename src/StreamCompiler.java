@@ -0,0 +1,190 @@
+package src;
+
+import java.util.ArrayList;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.io.StringWriter;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import src.Compiler;
+import src.CompileException;
+import src.Ir;
+import src.Lexer;
+import src.Optimizer;
+import src.TapeBounds;
+
+/**
+ * StreamCompiler translates a program to C while it is being read. The
+ * lexer, the Ir.Builder, the optimizer passes and the Compiler are chained,
+ * so only a chunk of the source, a window of nodes and the depth of the
+ * loops are held in memory. Programs of any size compile in constant heap.
+ *
+ * Without the whole program its bounds are unknown, so it runs on a growing
+ * or mapped tape. For the tape to know how far the nodes reach around the
+ * pointer, no node addresses a cell further than REACH cells away.
+ */
+public class StreamCompiler {
+    /** The furthest a node addresses a cell from the pointer */
+    public static final int REACH = 1 << 12;
+    /** The number of nodes that are collected before they are optimized */
+    private static final int WINDOW_SIZE = 1 << 12;
+    /** The size of the buffer the C code is written through */
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private StreamCompiler() {
+    }
+
+    /**
+     * Translates the source file to C.
+     *
+     * @return The number of commands in the source
+     */
+    public static long compile(String fileName, String outputFile, boolean mapped, int cellBits) {
+	try(FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+	    try(BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile),
+										  StandardCharsets.UTF_8),
+							   OUTPUT_BUFFER_SIZE)) {
+		return compile(channel, writer, mapped, cellBits);
+	    } catch(IOException ex) {
+		throw new CompileException("Error writing to file " + outputFile, ex);
+	    }
+	} catch(IOException ex) {
+	    throw new CompileException("Error reading file " + fileName, ex);
+	}
+    }
+
+    /**
+     * Translates the source file to C, which is written to the writer.
+     *
+     * @return The number of commands in the source
+     */
+    public static long compile(String fileName, Writer writer, boolean mapped, int cellBits) throws IOException {
+	FileChannel channel;
+	try {
+	    channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+	} catch(IOException ex) {
+	    throw new CompileException("Error reading file " + fileName, ex);
+	}
+	try(channel) {
+	    return compile(channel, writer, mapped, cellBits);
+	}
+    }
+
+    /**
+     * Reads the source from the channel and writes its C translation to
+     * the writer, a window of nodes at a time.
+     *
+     * @return The number of commands in the source
+     */
+    public static long compile(ReadableByteChannel channel, Writer writer,
+			       boolean mapped, int cellBits) throws IOException {
+	Compiler.Emitter emitter = new Compiler.Emitter(writer, TapeBounds.unknown(REACH), mapped, cellBits);
+	Optimizer.Offsets offsets = new Optimizer.Offsets(REACH);
+	ArrayList<Ir.Node> window = new ArrayList<Ir.Node>(2 * WINDOW_SIZE);
+	ArrayList<Ir.Node> optimized = new ArrayList<Ir.Node>(2 * WINDOW_SIZE);
+	Ir.Builder builder = new Ir.Builder(window);
+	Lexer.Source source = new Lexer.Source(channel);
+
+	emitter.begin();
+	while(source.next()) {
+	    builder.add(source.type(), source.count());
+	    if(window.size() >= WINDOW_SIZE) {
+		flush(window, cut(window), offsets, optimized, emitter);
+	    }
+	}
+	builder.finish();
+	flush(window, window.size(), offsets, optimized, emitter);
+	offsets.finish(optimized);
+	emit(optimized, emitter);
+	emitter.end();
+	return source.commands();
+    }
+
+    /**
+     * Finds where the window can be split without changing the optimized
+     * program. The last node stays, as the builder may still fold into it,
+     * and so does an innermost loop that may still become an idiom, unless
+     * it grew too long.
+     *
+     * @return The number of nodes that can be optimized now
+     */
+    private static int cut(ArrayList<Ir.Node> window) {
+	int last = window.size() - 1;
+	for(int index = last; index >= 0 && last - index < WINDOW_SIZE / 2; index--) {
+	    Ir.Op op = window.get(index).op;
+	    if(op == Ir.Op.LOOPSTART) {
+		return index;
+	    }
+	    if(op != Ir.Op.ADD && op != Ir.Op.MOVE) {
+		break;
+	    }
+	}
+	return last;
+    }
+
+    /**
+     * Optimizes and emits the first count nodes of the window.
+     */
+    private static void flush(ArrayList<Ir.Node> window, int count, Optimizer.Offsets offsets,
+			      ArrayList<Ir.Node> optimized, Compiler.Emitter emitter) throws IOException {
+	ArrayList<Ir.Node> part = new ArrayList<Ir.Node>(window.subList(0, count));
+	window.subList(0, count).clear();
+	for(Ir.Node node : Optimizer.recognizeIdioms(part, REACH)) {
+	    offsets.add(node, optimized);
+	}
+	emit(optimized, emitter);
+    }
+
+    private static void emit(ArrayList<Ir.Node> optimized, Compiler.Emitter emitter) throws IOException {
+	for(Ir.Node node : optimized) {
+	    emitter.emit(node);
+	}
+	optimized.clear();
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in StreamCompiler.java");
+	testCompile();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testCompile() {
+	System.out.println("Starting to test compile");
+	// Long enough for several windows, with idioms and far moves
+	StringBuilder program = new StringBuilder();
+	for(int repetition = 0; repetition < 5000; repetition++) {
+	    program.append("AAA{DRAAL}R{D}");
+	}
+	for(int repetition = 0; repetition < 3 * REACH; repetition++) {
+	    program.append("RA");
+	}
+	program.append("{DL}O");
+	byte[] source = program.toString().getBytes();
+
+	StringWriter writer = new StringWriter();
+	try {
+	    long commands = compile(Channels.newChannel(new java.io.ByteArrayInputStream(source)),
+				    writer, false, 8);
+	    assert commands == source.length;
+	} catch(IOException ex) {
+	    assert false : ex;
+	}
+	String code = writer.toString();
+	assert code.contains("long pointer = " + REACH + ";");
+	// The idioms were recognized in every window
+	assert !code.contains("while(memory[pointer]){\n\t\tmemory[pointer] -= 1;\n\t}");
+	assert code.split("\\+= 2 \\* memory", -1).length == 5001;
+	// No node addresses a cell out of reach
+	assert !code.matches("(?s).*memory\\[pointer[+-]" + (REACH + 1) + "\\].*");
+	System.out.println("Done.");
+    }
+}
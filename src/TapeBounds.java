@@ -0,0 +1,197 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+
+import src.Ir;
+import src.Optimizer;
+
+/**
+ * TapeBounds finds the cells a program can reach, relative to the cell it
+ * starts at. Code outside of loops moves the pointer by a known amount and
+ * so do loops that end on the cell they started on, no matter how often they
+ * run. The bounds are unknown once a loop moves the pointer or a SCAN runs.
+ */
+public class TapeBounds {
+    /** Programs reaching further than this use a growing tape instead. */
+    public static final long MAX_STATIC_SIZE = 1L << 30;
+    /** The cells reserved for a mapped tape, only touched pages are committed */
+    public static final long MAPPED_TAPE_SIZE = 1L << 32;
+    // Guards are a multiple of the largest page size of x86-64 and arm64 (64 KiB)
+    private static final int GUARD_ALIGNMENT = 1 << 16;
+    // Larger steps on a mapped tape are checked, so the guards stay small
+    private static final int MAX_GUARDED_STEP = 1 << 16;
+
+    /** The leftmost and rightmost cell the program can reach */
+    public final long min, max;
+    /** Whether the program can only reach the cells between min and max */
+    public final boolean known;
+    /** The lowest and highest offset of a node, relative to the pointer */
+    public final int minOffset, maxOffset;
+    /** The furthest a MOVE or SCAN moves the pointer at once */
+    public final int maxStep;
+
+    private TapeBounds(long min, long max, boolean known, int minOffset, int maxOffset, int maxStep) {
+	this.min = min;
+	this.max = max;
+	this.known = known;
+	this.minOffset = minOffset;
+	this.maxOffset = maxOffset;
+	this.maxStep = maxStep;
+    }
+
+    /**
+     * The bounds of a program that has not been analyzed, e.g. because it
+     * is compiled while being read. Its nodes must not address cells
+     * further than reach from the pointer. Its steps are taken to be that
+     * far as well, which larger ones must be checked against.
+     */
+    public static TapeBounds unknown(int reach) {
+	return new TapeBounds(0, 0, false, -reach, reach, reach);
+    }
+
+    /**
+     * @return The number of cells between min and max
+     */
+    public long size() {
+	return max - min + 1;
+    }
+
+    /**
+     * @return The cell the pointer starts at when the tape begins at min
+     */
+    public long origin() {
+	return -min;
+    }
+
+    /**
+     * @return The furthest the pointer moves at once on a mapped tape
+     * without being checked
+     */
+    public long guardedStep() {
+	return Math.min(maxStep, MAX_GUARDED_STEP);
+    }
+
+    /**
+     * Between two accesses the pointer moves by at most guardedStep and the
+     * offset changes by at most the span of the offsets. The guards on
+     * either side of a mapped tape are wider than both together, so no
+     * access can skip them.
+     *
+     * @param cellBytes The number of bytes of a cell
+     * @return The number of bytes of a guard
+     */
+    public long guardSize(int cellBytes) {
+	long reach = ((long)maxOffset - minOffset + guardedStep() + 1) * cellBytes;
+	return (reach + GUARD_ALIGNMENT - 1) / GUARD_ALIGNMENT * GUARD_ALIGNMENT;
+    }
+
+    /**
+     * Analyzes the pointer movement of the program.
+     *
+     * @param program The program in its intermediate representation
+     * @return The bounds of the program
+     */
+    public static TapeBounds analyze(ArrayList<Ir.Node> program) {
+	ArrayDeque<Long> loops = new ArrayDeque<Long>();
+	long pointer = 0;
+	long min = 0;
+	long max = 0;
+	boolean known = true;
+	int minOffset = 0;
+	int maxOffset = 0;
+	int maxStep = 0;
+	for(Ir.Node node : program) {
+	    int low = node.offset;
+	    int high = node.offset;
+	    if(node.op == Ir.Op.MULADD) {
+		low = Math.min(low, node.source);
+		high = Math.max(high, node.source);
+	    }
+	    minOffset = Math.min(minOffset, low);
+	    maxOffset = Math.max(maxOffset, high);
+
+	    switch(node.op) {
+	    case MOVE:
+		pointer += node.value;
+		maxStep = (int)Math.max(maxStep, Math.min(Math.abs((long)node.value), Integer.MAX_VALUE));
+		break;
+	    case SCAN:
+		known = false;
+		maxStep = (int)Math.max(maxStep, Math.min(Math.abs((long)node.value), Integer.MAX_VALUE));
+		break;
+	    case LOOPSTART:
+		loops.push(pointer);
+		break;
+	    case LOOPSTOP:
+		if(loops.pop() != pointer) {
+		    known = false;
+		}
+		break;
+	    default:
+		break;
+	    }
+	    min = Math.min(min, pointer + low);
+	    max = Math.max(max, pointer + high);
+	}
+	if(max - min + 1 > MAX_STATIC_SIZE) {
+	    known = false;
+	}
+	return new TapeBounds(min, max, known, minOffset, maxOffset, maxStep);
+    }
+
+    @Override
+    public String toString() {
+	return known ? "[" + min + ", " + max + "]" : "unknown";
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in TapeBounds.java");
+	testAnalyze();
+	testGuardSize();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static TapeBounds analyze(String source) {
+	return analyze(Optimizer.optimize(source));
+    }
+
+    private static void testAnalyze() {
+	System.out.println("Starting to test analyze");
+	TapeBounds bounds = analyze("AAO");
+	assert bounds.known && bounds.min == 0 && bounds.max == 0 : bounds;
+
+	bounds = analyze("RRRALLLLLA");
+	assert bounds.known && bounds.min == -2 && bounds.max == 3 : bounds;
+	assert bounds.size() == 6 && bounds.origin() == 2;
+	assert bounds.maxStep == 2 : bounds.maxStep;
+
+	// Balanced loops stay known, however often they run
+	bounds = analyze("AAAA{DRRAAL{DRRAALL}L}");
+	assert bounds.known && bounds.min == 0 && bounds.max == 3 : bounds;
+
+	// Moving loops and scans can reach any cell
+	assert !analyze("A{RA}").known;
+	assert !analyze("A{R}").known;
+	bounds = analyze("A{LLAAR}RR");
+	assert !bounds.known && bounds.minOffset == -2 && bounds.maxOffset == 0 : bounds;
+	assert analyze("A{LLLR}").maxStep == 2;
+	System.out.println("Done.");
+    }
+
+    private static void testGuardSize() {
+	System.out.println("Starting to test guardSize");
+	TapeBounds bounds = analyze("A{LLAAR}RR");
+	assert bounds.guardedStep() == bounds.maxStep;
+	assert bounds.guardSize(1) == GUARD_ALIGNMENT && bounds.guardSize(4) == GUARD_ALIGNMENT;
+
+	// Larger steps are checked instead of widening the guards
+	bounds = unknown(1 << 20);
+	assert bounds.guardedStep() == MAX_GUARDED_STEP;
+	long reach = (2L << 20) + MAX_GUARDED_STEP + 1;
+	assert bounds.guardSize(1) >= reach && bounds.guardSize(1) % GUARD_ALIGNMENT == 0;
+	assert bounds.guardSize(4) >= 4 * reach && bounds.guardSize(4) < 4 * reach + GUARD_ALIGNMENT;
+	System.out.println("Done.");
+    }
+}
@@ -0,0 +1,152 @@
+package src;
+
+import java.util.Arrays;
+
+/**
+ * TokenStream is a compact list of tokens. Instead of one Token object
+ * per command, only the ordinal of its TokenType is stored in a growable
+ * byte array.
+ *
+ * With run-length encoding enabled, consecutive equal tokens are stored
+ * once, together with the number of repetitions. Loop tokens are never
+ * merged, as every one of them opens or closes its own loop.
+ */
+public class TokenStream {
+    private static final Lexer.TokenType[] TOKEN_TYPES = Lexer.TokenType.values();
+    private static final byte LOOPSTART = (byte)Lexer.TokenType.LOOPSTART.ordinal();
+    private static final byte LOOPSTOP = (byte)Lexer.TokenType.LOOPSTOP.ordinal();
+
+    private byte[] types;
+    private int[] counts;
+    private int size;
+    private long commands;
+
+    public TokenStream() {
+	this(1024, true);
+    }
+
+    /**
+     * @param capacity The number of tokens that fit in before the stream has to grow
+     */
+    public TokenStream(int capacity) {
+	this(capacity, true);
+    }
+
+    /**
+     * @param capacity The number of tokens that fit in before the stream has to grow
+     * @param runLength Whether consecutive equal tokens shall be merged
+     */
+    public TokenStream(int capacity, boolean runLength) {
+	capacity = Math.max(capacity, 16);
+	types = new byte[capacity];
+	counts = runLength ? new int[capacity] : null;
+	size = 0;
+	commands = 0;
+    }
+
+    /**
+     * Appends a token.
+     *
+     * @param type The ordinal of the TokenType of the token
+     */
+    public void add(byte type) {
+	add(type, 1);
+    }
+
+    /**
+     * Appends count repetitions of a token.
+     *
+     * @param type The ordinal of the TokenType of the token
+     * @param count How often the token is repeated
+     */
+    public void add(byte type, int count) {
+	commands += count;
+	if(counts != null) {
+	    int last = size - 1;
+	    if(last >= 0 && types[last] == type && type != LOOPSTART && type != LOOPSTOP
+	       && counts[last] <= Integer.MAX_VALUE - count) {
+		counts[last] += count;
+		return;
+	    }
+	    append(type, count);
+	} else {
+	    for(int repetition = 0; repetition < count; repetition++) {
+		append(type, 1);
+	    }
+	}
+    }
+
+    /**
+     * @return The number of tokens (or runs of tokens) in this stream
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * @return The number of commands in this stream, counting every repetition
+     */
+    public long commands() {
+	return commands;
+    }
+
+    /**
+     * Appends all tokens of another stream, which must use the same
+     * encoding. Its first run is merged with the last run of this stream.
+     */
+    public void addAll(TokenStream other) {
+	if(other.size == 0) {
+	    return;
+	}
+	add(other.types[0], other.count(0));
+	int count = other.size - 1;
+	ensureCapacity(size + count);
+	System.arraycopy(other.types, 1, types, size, count);
+	if(counts != null) {
+	    System.arraycopy(other.counts, 1, counts, size, count);
+	}
+	size += count;
+	commands += other.commands - other.count(0);
+    }
+
+    /**
+     * Removes all tokens, but keeps the capacity for the next ones.
+     */
+    public void clear() {
+	size = 0;
+	commands = 0;
+    }
+
+    /**
+     * @return The TokenType of the token at index
+     */
+    public Lexer.TokenType get(int index) {
+	return TOKEN_TYPES[types[index]];
+    }
+
+    /**
+     * @return How often the token at index is repeated
+     */
+    public int count(int index) {
+	return counts == null ? 1 : counts[index];
+    }
+
+    private void append(byte type, int count) {
+	ensureCapacity(size + 1);
+	types[size] = type;
+	if(counts != null) {
+	    counts[size] = count;
+	}
+	size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+	if(capacity > types.length) {
+	    capacity = Math.max(capacity, types.length * 2);
+	    types = Arrays.copyOf(types, capacity);
+	    if(counts != null) {
+		counts = Arrays.copyOf(counts, capacity);
+	    }
+	}
+    }
+}
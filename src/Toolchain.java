@@ -0,0 +1,181 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import src.CompileException;
+
+/**
+ * Toolchain pipes C code straight into the C compiler, which writes the
+ * executable. There is no .c file in between: the compiler is started
+ * before the program is even lexed and reads the code while it is written.
+ *
+ * Everything the compiler prints is collected. If it fails, that is the
+ * message of the CompileException, otherwise it is handed back as the
+ * diagnostics of the code.
+ */
+public class Toolchain {
+    /** The compiler that runs if $CC does not name one */
+    public static final String DEFAULT_COMMAND = "cc -O2";
+    // The size of the buffer the C code is written through
+    private static final int PIPE_BUFFER_SIZE = 1 << 16;
+
+    private String name;
+    private Process process;
+    private Writer writer;
+    private Thread reader;
+    private ByteArrayOutputStream printed;
+    private IOException failure;
+
+    /**
+     * Starts the compiler.
+     *
+     * @param command The compiler and its flags, e.g. "gcc -O3"
+     * @param executable The file the compiler writes the executable to
+     */
+    public Toolchain(String command, String executable) throws CompileException {
+	ArrayList<String> arguments = new ArrayList<String>(Arrays.asList(command.trim().split("\\s+")));
+	arguments.addAll(Arrays.asList("-x", "c", "-", "-o", executable));
+	name = arguments.get(0);
+	try {
+	    process = new ProcessBuilder(arguments).redirectErrorStream(true).start();
+	} catch(IOException ex) {
+	    throw new CompileException("Error starting the C compiler " + name + ": " + ex.getMessage(), ex);
+	}
+	// The compiler blocks once its output fills the pipe, so it is read all along
+	printed = new ByteArrayOutputStream();
+	reader = new Thread(() -> {
+		try(InputStream in = process.getInputStream()) {
+		    in.transferTo(printed);
+		} catch(IOException ex) {
+		    // The compiler is gone, what it printed so far has to do
+		}
+	}, "toolchain-" + name);
+	reader.setDaemon(true);
+	reader.start();
+	writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8),
+				    PIPE_BUFFER_SIZE);
+    }
+
+    /**
+     * @return $CC with -O2, or DEFAULT_COMMAND without it
+     */
+    public static String defaultCommand() {
+	String cc = System.getenv("CC");
+	return cc == null || cc.isBlank() ? DEFAULT_COMMAND : cc + " -O2";
+    }
+
+    /**
+     * @return The Writer the C code is written to
+     */
+    public Writer writer() {
+	return writer;
+    }
+
+    /**
+     * Reports that writing the code failed. That mostly means the
+     * compiler quit early, which finish explains.
+     */
+    public void failed(IOException ex) {
+	if(failure == null) {
+	    failure = ex;
+	}
+    }
+
+    /**
+     * Ends the code and waits for the compiler.
+     *
+     * @return What the compiler printed, empty if nothing
+     * @throws CompileException If the compiler failed, with what it printed
+     */
+    public String finish() throws CompileException {
+	try {
+	    writer.close();
+	} catch(IOException ex) {
+	    failed(ex);
+	}
+	int status = waitFor();
+	String diagnostics = new String(printed.toByteArray(), StandardCharsets.UTF_8).strip();
+	if(status != 0) {
+	    throw new CompileException("The C compiler " + name + " failed with status " + status
+				       + (diagnostics.isEmpty() ? "" : ":\n" + diagnostics));
+	}
+	if(failure != null) {
+	    throw new CompileException("Error writing to the C compiler " + name, failure);
+	}
+	return diagnostics;
+    }
+
+    /**
+     * Stops the compiler, after the program turned out to be broken.
+     */
+    public void abort() {
+	process.destroyForcibly();
+	waitFor();
+    }
+
+    /**
+     * @return The exit status of the compiler, once all it printed was read
+     */
+    private int waitFor() {
+	try {
+	    int status = process.waitFor();
+	    reader.join();
+	    return status;
+	} catch(InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    process.destroyForcibly();
+	    throw new CompileException("Interrupted while waiting for the C compiler " + name);
+	}
+    }
+
+    public static void testAll() {
+	System.out.println("Starting tests in Toolchain.java");
+	testFinish();
+
+	System.out.println("------\nDone.");
+    }
+
+    private static void testFinish() {
+	System.out.println("Starting to test finish");
+	try {
+	    File directory = Files.createTempDirectory("chris-toolchain-test").toFile();
+	    File executable = new File(directory, "prog");
+	    Toolchain toolchain;
+	    try {
+		toolchain = new Toolchain(defaultCommand(), executable.getPath());
+	    } catch(CompileException ex) {
+		System.out.println("No C compiler, skipped");
+		return;
+	    }
+	    toolchain.writer().write("int main(void) { return 0; }\n");
+	    assert toolchain.finish().isEmpty();
+	    assert executable.canExecute();
+	    assert executable.delete();
+
+	    // The errors of the compiler are the message
+	    toolchain = new Toolchain(defaultCommand(), executable.getPath());
+	    toolchain.writer().write("int main(void) { return undeclared; }\n");
+	    try {
+		toolchain.finish();
+		assert false : "A broken program compiled";
+	    } catch(CompileException ex) {
+		assert ex.getMessage().contains("undeclared") : ex.getMessage();
+	    }
+	    assert !executable.exists();
+	    assert directory.delete();
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	System.out.println("Done.");
+    }
+}
@@ -2,6 +2,7 @@ package src.lib;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Collections;
 
 import src.lib.ArgumentPosition;
 
@@ -224,7 +225,7 @@ public class ArgumentParser{
         // If there are, we just take every argument as positional, until we hit the first
         // argument that starts with a '--' or a '-', which are signs for switches or options.
         if(positionalsPosition == ArgumentPosition.BACK) {
-            for(int currentArgCounter = args.length - 1; currentArgCounter > 0; currentArgCounter--) {
+            for(int currentArgCounter = args.length - 1; currentArgCounter >= 0; currentArgCounter--) {
                 String currentArg = args[currentArgCounter];
                 if(currentArg.startsWith("--") || currentArg.startsWith("-")) {
 		    if(optionMap.containsKey(currentArg)) {
@@ -234,6 +235,8 @@ public class ArgumentParser{
 		}
 		positionals.add(currentArg);
 	    }
+	    // They were collected from the back
+	    Collections.reverse(positionals);
 	}
 
 	boolean foundArgument = false;
@@ -272,6 +275,7 @@ public class ArgumentParser{
 		}
 	    }
 	}
+	isParsed = true;
 	return true;
     }
 
@@ -0,0 +1,394 @@
+package src.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A minimal writer for JVM class files.
+ * The classes are written in version 49 (Java 5), which the JVM verifies
+ * without stack map frames, so branches can be emitted without computing them.
+ * Example:
+ * In myfile.java:
+ *     ClassWriter writer = new ClassWriter("Sample");
+ *     ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+ *                                              "answer", "()I", 1, 0);
+ *     code.pushInt(42);
+ *     code.emit(ClassWriter.IRETURN);
+ *     byte[] bytes = writer.toByteArray();
+ *
+ *
+ * Only the opcodes that are needed by the Christal backends are defined.
+ */
+public class ClassWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_SUPER = 0x0020;
+
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int BALOAD = 0x33;
+    public static final int SALOAD = 0x35;
+    public static final int IALOAD = 0x2e;
+    public static final int ISTORE = 0x36;
+    public static final int ASTORE = 0x3a;
+    public static final int IASTORE = 0x4f;
+    public static final int BASTORE = 0x54;
+    public static final int SASTORE = 0x56;
+    public static final int POP = 0x57;
+    public static final int DUP = 0x59;
+    public static final int DUP2 = 0x5c;
+    public static final int IADD = 0x60;
+    public static final int IMUL = 0x68;
+    public static final int ISHR = 0x7a;
+    public static final int IAND = 0x7e;
+    public static final int IXOR = 0x82;
+    public static final int IINC = 0x84;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int GOTO = 0xa7;
+    public static final int IRETURN = 0xac;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int GETSTATIC = 0xb2;
+    public static final int PUTSTATIC = 0xb3;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int NEW = 0xbb;
+    public static final int NEWARRAY = 0xbc;
+    public static final int ARRAYLENGTH = 0xbe;
+    public static final int WIDE = 0xc4;
+
+    /** Array types for NEWARRAY */
+    public static final int T_BYTE = 8;
+    public static final int T_SHORT = 9;
+    public static final int T_INT = 10;
+
+    /** Methods may not have more bytes of code than this */
+    public static final int MAX_CODE_LENGTH = 65535;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private String name;
+    private ByteArrayOutputStream constants;
+    private DataOutputStream constantsOut;
+    private HashMap<String, Integer> constantIndices;
+    private int constantCount;
+    private ArrayList<int[]> fields;
+    private ArrayList<Code> methods;
+
+    /**
+     * @param name The internal name of the class, e.g. "src/Program"
+     */
+    public ClassWriter(String name) {
+	this.name = name;
+	constants = new ByteArrayOutputStream();
+	constantsOut = new DataOutputStream(constants);
+	constantIndices = new HashMap<String, Integer>();
+	constantCount = 1;
+	fields = new ArrayList<int[]>();
+	methods = new ArrayList<Code>();
+    }
+
+    /**
+     * Adds a field, without an initial value.
+     *
+     * @param access The access flags, e.g. ACC_PRIVATE | ACC_STATIC
+     * @param name The name of the field
+     * @param descriptor The descriptor of the field, e.g. "[B"
+     */
+    public void addField(int access, String name, String descriptor) {
+	fields.add(new int[] {access, utf8(name), utf8(descriptor)});
+    }
+
+    /**
+     * Adds a method. Its code is appended to the returned Code.
+     *
+     * @param access The access flags, e.g. ACC_PUBLIC | ACC_STATIC
+     * @param name The name of the method
+     * @param descriptor The descriptor of the method, e.g. "([B)I"
+     * @param maxStack The maximum depth of the operand stack
+     * @param maxLocals The number of local variable slots, including the arguments
+     * @return The Code of the method
+     */
+    public Code addMethod(int access, String name, String descriptor, int maxStack, int maxLocals) {
+	Code code = new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+	methods.add(code);
+	return code;
+    }
+
+    /**
+     * @return The contents of the class file
+     */
+    public byte[] toByteArray() {
+	int thisClass = classRef(name);
+	int superClass = classRef("java/lang/Object");
+	int codeName = utf8("Code");
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(49);
+	    out.writeShort(constantCount);
+	    constants.writeTo(out);
+	    out.writeShort(ACC_PUBLIC | ACC_SUPER);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0); // interfaces
+	    out.writeShort(fields.size());
+	    for(int[] field : fields) {
+		out.writeShort(field[0]);
+		out.writeShort(field[1]);
+		out.writeShort(field[2]);
+		out.writeShort(0); // attributes
+	    }
+	    out.writeShort(methods.size());
+	    for(Code method : methods) {
+		if(method.length > MAX_CODE_LENGTH) {
+		    throw new IllegalStateException("Method code too large: " + method.length + " bytes");
+		}
+		out.writeShort(method.access);
+		out.writeShort(method.name);
+		out.writeShort(method.descriptor);
+		out.writeShort(1); // attributes
+		out.writeShort(codeName);
+		out.writeInt(12 + method.length);
+		out.writeShort(method.maxStack);
+		out.writeShort(method.maxLocals);
+		out.writeInt(method.length);
+		out.write(method.code, 0, method.length);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	    }
+	    out.writeShort(0); // attributes
+	    return bytes.toByteArray();
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    public int utf8(String value) {
+	Integer index = constantIndices.get("u" + value);
+	if(index != null) {
+	    return index;
+	}
+	try {
+	    constantsOut.writeByte(CONSTANT_UTF8);
+	    constantsOut.writeUTF(value);
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	return addConstant("u" + value);
+    }
+
+    public int integer(int value) {
+	Integer index = constantIndices.get("i" + value);
+	if(index != null) {
+	    return index;
+	}
+	writeConstant(CONSTANT_INTEGER, value >>> 16, value & 0xFFFF);
+	return addConstant("i" + value);
+    }
+
+    public int classRef(String className) {
+	Integer index = constantIndices.get("c" + className);
+	if(index != null) {
+	    return index;
+	}
+	int nameIndex = utf8(className);
+	writeConstant(CONSTANT_CLASS, nameIndex);
+	return addConstant("c" + className);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+	return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+	return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+	String key = tag + owner + "." + name + descriptor;
+	Integer index = constantIndices.get(key);
+	if(index != null) {
+	    return index;
+	}
+	int ownerIndex = classRef(owner);
+	String typeKey = "n" + name + descriptor;
+	Integer nameAndType = constantIndices.get(typeKey);
+	if(nameAndType == null) {
+	    int nameIndex = utf8(name);
+	    int descriptorIndex = utf8(descriptor);
+	    writeConstant(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+	    nameAndType = addConstant(typeKey);
+	}
+	writeConstant(tag, ownerIndex, nameAndType);
+	return addConstant(key);
+    }
+
+    private void writeConstant(int tag, int... shorts) {
+	try {
+	    constantsOut.writeByte(tag);
+	    for(int value : shorts) {
+		constantsOut.writeShort(value);
+	    }
+	} catch(IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    private int addConstant(String key) {
+	if(constantCount == 0xFFFF) {
+	    throw new IllegalStateException("Too many constants");
+	}
+	constantIndices.put(key, constantCount);
+	return constantCount++;
+    }
+
+    /**
+     * The code of one method.
+     */
+    public class Code {
+	private int access;
+	private int name;
+	private int descriptor;
+	private int maxStack;
+	private int maxLocals;
+	private byte[] code;
+	private int length;
+
+	private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+	    this.access = access;
+	    this.name = name;
+	    this.descriptor = descriptor;
+	    this.maxStack = maxStack;
+	    this.maxLocals = maxLocals;
+	    this.code = new byte[256];
+	    this.length = 0;
+	}
+
+	/**
+	 * @return The number of bytes of code written so far
+	 */
+	public int size() {
+	    return length;
+	}
+
+	public void emit(int value) {
+	    if(length == code.length) {
+		code = Arrays.copyOf(code, code.length * 2);
+	    }
+	    code[length++] = (byte)value;
+	}
+
+	public void emitShort(int value) {
+	    emit(value >> 8);
+	    emit(value);
+	}
+
+	/**
+	 * Emits an instruction that takes a constant pool index, like INVOKESTATIC.
+	 */
+	public void emit(int opcode, int constant) {
+	    emit(opcode);
+	    emitShort(constant);
+	}
+
+	/**
+	 * Emits an instruction on a local variable, like ILOAD.
+	 */
+	public void local(int opcode, int index) {
+	    if(index > 0xFF) {
+		emit(WIDE);
+		emit(opcode);
+		emitShort(index);
+	    } else {
+		emit(opcode);
+		emit(index);
+	    }
+	}
+
+	/**
+	 * Adds increment to the int in the given local variable.
+	 */
+	public void increment(int index, int increment) {
+	    if(increment >= Byte.MIN_VALUE && increment <= Byte.MAX_VALUE && index <= 0xFF) {
+		emit(IINC);
+		emit(index);
+		emit(increment);
+	    } else if(increment >= Short.MIN_VALUE && increment <= Short.MAX_VALUE) {
+		emit(WIDE);
+		emit(IINC);
+		emitShort(index);
+		emitShort(increment);
+	    } else {
+		local(ILOAD, index);
+		pushInt(increment);
+		emit(IADD);
+		local(ISTORE, index);
+	    }
+	}
+
+	/**
+	 * Pushes an int constant with the shortest possible instruction.
+	 */
+	public void pushInt(int value) {
+	    if(value >= -1 && value <= 5) {
+		emit(ICONST_0 + value);
+	    } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+		emit(BIPUSH);
+		emit(value);
+	    } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+		emit(SIPUSH);
+		emitShort(value);
+	    } else {
+		emit(LDC_W, integer(value));
+	    }
+	}
+
+	/**
+	 * Emits a branch whose target is not known yet.
+	 *
+	 * @return The position of the branch, to be passed to patch
+	 */
+	public int branch(int opcode) {
+	    int position = length;
+	    emit(opcode);
+	    emitShort(0);
+	    return position;
+	}
+
+	/**
+	 * Emits a branch to an already known target.
+	 */
+	public void branch(int opcode, int target) {
+	    patch(branch(opcode), target);
+	}
+
+	/**
+	 * Lets the branch at position jump to target.
+	 */
+	public void patch(int position, int target) {
+	    int offset = target - position;
+	    code[position + 1] = (byte)(offset >> 8);
+	    code[position + 2] = (byte)offset;
+	}
+    }
+}